@@ -0,0 +1,545 @@
+package io.dwclark.btree;
+
+import io.dwclark.btree.io.ImmutableBytes;
+import io.dwclark.btree.io.MutableBytes;
+import io.dwclark.btree.io.ViewBytes;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+//A B+ tree over the same bytes, records and allocator as BTree. Inner nodes hold only
+//keys and children, so they fan out further than BTree nodes of the same size. Values
+//are all in the leaves, which are linked in key order.
+//Inner nodes are interleaved [child|key] entries. Leaves keep the next leaf where the
+//first child would be, followed by all keys and then all values. The factory's layout
+//only applies to BTree nodes.
+//Splits and merges happen on the way down, like BTree. There is no latching, sharing a
+//tree between threads relies on the locking of the ViewBytes.
+public class BPlusTree<K,V> {
+
+    //next leaf of the last leaf
+    public static final int NO_LEAF = -1;
+
+    private final ViewBytes viewBytes;
+    private final BlockAllocator allocator;
+    private final NodeFactory<K,V> factory;
+    private final Node.Shape innerShape;
+    private final Node.Shape leafShape;
+    private final int maxInnerKeys;
+    private final int maxLeafKeys;
+    private final ThreadLocal<Lookup> lookups = ThreadLocal.withInitial(Lookup::new);
+
+    private volatile int root;
+
+    public int getRoot() { return root; }
+    public BlockAllocator getAllocator() { return allocator; }
+    public int getMaxInnerKeys() { return maxInnerKeys; }
+    public int getMaxLeafKeys() { return maxLeafKeys; }
+
+    public BPlusTree(final ViewBytes viewBytes, final BlockAllocator allocator,
+                     final NodeFactory<K,V> factory, final int root) {
+        this.viewBytes = viewBytes;
+        this.allocator = allocator;
+        this.factory = factory;
+        this.root = root;
+
+        final int keySize = factory.keyRecord().size();
+        final int valueSize = factory.valueRecord().size();
+        final int space = factory.getBufferSize() - Node.META_SIZE;
+        //inner nodes split around a median, so they hold an odd number of keys
+        final int innerFit = space / (Node.CHILD_SIZE + keySize);
+        this.maxInnerKeys = ((innerFit % 2) == 0) ? innerFit - 1 : innerFit;
+        this.maxLeafKeys = space / (keySize + valueSize);
+
+        if(maxInnerKeys < 3 || maxLeafKeys < 3) {
+            throw new IllegalArgumentException("not enough space for b+tree node");
+        }
+
+        final int innerEntry = Node.CHILD_SIZE + keySize;
+        this.innerShape = new Node.Shape(Node.COUNT_SIZE, innerEntry, Node.COUNT_SIZE + Node.CHILD_SIZE, innerEntry,
+                                         Node.COUNT_SIZE, 0, true);
+        this.leafShape = new Node.Shape(Node.COUNT_SIZE, 0, Node.META_SIZE, keySize,
+                                        Node.META_SIZE + (maxLeafKeys * keySize), valueSize, false);
+    }
+
+    public BPlusTree(final ViewBytes viewBytes, final NodeFactory<K,V> factory) {
+        this(viewBytes, new BlockAllocator(0xFFFF_FFFFL, false), factory, 0);
+        this.root = viewBytes.withWrite((bytes) -> { return newLeaf(bytes); }).node();
+    }
+
+    private Node.Shape shape(final ImmutableBytes bytes, final int node) {
+        return Node.leaf(bytes, node, factory.getBufferSize()) ? leafShape : innerShape;
+    }
+
+    private Node.Mutable<K,V> mutable(final MutableBytes bytes, final int node) {
+        return new Node.Mutable<>(bytes, factory.keyRecord(), factory.valueRecord(), factory.search(),
+                                  shape(bytes, node), node, factory.getBufferSize());
+    }
+
+    private Node.Immutable<K,V> immutable(final ImmutableBytes bytes, final int node) {
+        return new Node.Immutable<>(bytes, factory.keyRecord(), factory.valueRecord(), factory.search(),
+                                    shape(bytes, node), node, factory.getBufferSize());
+    }
+
+    private Node.Mutable<K,V> newLeaf(final MutableBytes bytes) {
+        return new Node.Mutable<>(bytes, factory.keyRecord(), factory.valueRecord(), factory.search(),
+                                  leafShape, (int) allocator.next(), factory.getBufferSize())
+            .leaf(true).count(0).child(NO_LEAF);
+    }
+
+    private Node.Mutable<K,V> newInner(final MutableBytes bytes) {
+        return new Node.Mutable<>(bytes, factory.keyRecord(), factory.valueRecord(), factory.search(),
+                                  innerShape, (int) allocator.next(), factory.getBufferSize())
+            .leaf(false).count(0);
+    }
+
+    private boolean full(final Node.Immutable<K,V> node) {
+        return node.count() >= (node.leaf() ? maxLeafKeys : maxInnerKeys);
+    }
+
+    private int minKeys(final Node.Immutable<K,V> node) {
+        return node.leaf() ? (maxLeafKeys / 2) : (maxInnerKeys / 2);
+    }
+
+    //moves an inner node's index to the child the key belongs under,
+    //keys equal to a separator are in the subtree to its right
+    private static <K,V> void route(final Node.Immutable<K,V> node, final K key) {
+        if(node.index(0).find(key)) {
+            node.incrementIndex();
+        }
+    }
+
+    private int nextLeaf(final Node.Immutable<K,V> leaf) {
+        return leaf.childAtIndex(0);
+    }
+
+    //Reused by each thread so a search only allocates what the caller is handed back
+    private class Lookup implements Function<ImmutableBytes,V> {
+        K key;
+        Node.Immutable<K,V> inner;
+        Node.Immutable<K,V> leaf;
+
+        private Node.Immutable<K,V> at(final ImmutableBytes bytes, final int node) {
+            if(Node.leaf(bytes, node, factory.getBufferSize())) {
+                if(leaf == null) {
+                    leaf = immutable(bytes, node);
+                }
+
+                return leaf.point(bytes, node);
+            }
+            else {
+                if(inner == null) {
+                    inner = immutable(bytes, node);
+                }
+
+                return inner.point(bytes, node);
+            }
+        }
+
+        public V apply(final ImmutableBytes bytes) {
+            Node.Immutable<K,V> node = at(bytes, root);
+            while(!node.leaf()) {
+                route(node, key);
+                node = at(bytes, node.child());
+            }
+
+            return node.find(key) ? node.value() : null;
+        }
+    }
+
+    public V search(final K key) {
+        final Lookup lookup = lookups.get();
+        lookup.key = key;
+        try {
+            return viewBytes.withRead(lookup);
+        }
+        finally {
+            lookup.key = null;
+        }
+    }
+
+    //child is under parent's index and full. Leaves split in half and copy their
+    //new right half's first key up, inner nodes move their median key up
+    private void split(final MutableBytes bytes, final Node.Mutable<K,V> parent, final Node.Mutable<K,V> child) {
+        final Node.Mutable<K,V> sibling;
+        if(child.leaf()) {
+            final int keep = child.count() / 2;
+            sibling = newLeaf(bytes);
+            sibling.move(0, child, keep, child.count() - keep).count(child.count() - keep).child(nextLeaf(child));
+            child.child(sibling).count(keep);
+            parent.rightShift().copyKey(sibling);
+        }
+        else {
+            final int keep = maxInnerKeys / 2;
+            sibling = newInner(bytes);
+            sibling.move(0, child, keep + 1, keep).count(keep);
+            child.count(keep).index(keep);
+            parent.rightShift().copyKey(child);
+        }
+
+        parent.rightChild(sibling).incrementCount();
+    }
+
+    public void insert(final K key, final V value) {
+        viewBytes.withWrite((bytes) -> {
+                Node.Mutable<K,V> node = mutable(bytes, root);
+                if(full(node)) {
+                    final Node.Mutable<K,V> newRoot = newInner(bytes);
+                    newRoot.child(node);
+                    split(bytes, newRoot, node);
+                    root = newRoot.node();
+                    node = newRoot;
+                }
+
+                while(!node.leaf()) {
+                    route(node, key);
+                    Node.Mutable<K,V> child = mutable(bytes, node.child());
+                    if(full(child)) {
+                        split(bytes, node, child);
+                        if(node.keyRecord.compare(bytes, node.keyPos(), key) >= 0) {
+                            node.incrementIndex();
+                            child = mutable(bytes, node.child());
+                        }
+                    }
+
+                    node = child;
+                }
+
+                if(node.find(key)) {
+                    node.value(value);
+                }
+                else {
+                    node.rightShift().key(key).value(value).incrementCount();
+                }
+            });
+    }
+
+    //child is under parent's index and has too few keys to lose one. Take one from
+    //a sibling if it can spare it, otherwise merge with a sibling
+    private void fix(final MutableBytes bytes, final Node.Mutable<K,V> parent, final Node.Mutable<K,V> child) {
+        final int index = parent.index();
+        final Node.Mutable<K,V> left = (index == 0) ? null : mutable(bytes, parent.childAtIndex(index - 1));
+        final Node.Mutable<K,V> right = (index == parent.count()) ? null : mutable(bytes, parent.childAtIndex(index + 1));
+
+        if(left != null && left.count() > minKeys(left)) {
+            fromLeft(parent, left, child);
+        }
+        else if(right != null && right.count() > minKeys(right)) {
+            fromRight(parent, child, right);
+        }
+        else if(left != null) {
+            parent.decrementIndex();
+            merge(parent, left, child);
+        }
+        else {
+            merge(parent, child, right);
+        }
+    }
+
+    private void fromLeft(final Node.Mutable<K,V> parent, final Node.Mutable<K,V> left, final Node.Mutable<K,V> child) {
+        child.index(0);
+        child.rightShift();
+        parent.decrementIndex();
+        if(child.leaf()) {
+            child.entry(left.index(left.count() - 1));
+            parent.copyKey(child);
+        }
+        else {
+            child.copyKey(parent).child(left.index(left.count()).child());
+            parent.copyKey(left.decrementIndex());
+        }
+
+        left.decrementCount();
+        child.incrementCount();
+        parent.incrementIndex();
+    }
+
+    private void fromRight(final Node.Mutable<K,V> parent, final Node.Mutable<K,V> child, final Node.Mutable<K,V> right) {
+        child.index(child.count());
+        if(child.leaf()) {
+            child.entry(right.index(0));
+            right.incrementIndex();
+            right.leftShift().decrementCount();
+            parent.copyKey(right.index(0));
+        }
+        else {
+            child.copyKey(parent).incrementIndex();
+            child.child(right.childAtIndex(0));
+            parent.copyKey(right.index(0));
+            right.incrementIndex();
+            right.leftShift().decrementCount();
+        }
+
+        child.incrementCount();
+    }
+
+    //left and right are under parent's index and the one after it, right is freed
+    private void merge(final Node.Mutable<K,V> parent, final Node.Mutable<K,V> left, final Node.Mutable<K,V> right) {
+        if(left.leaf()) {
+            left.move(left.count(), right, 0, right.count()).child(nextLeaf(right));
+            left.count(left.count() + right.count());
+        }
+        else {
+            left.index(left.count());
+            left.copyKey(parent);
+            left.move(left.count() + 1, right, 0, right.count());
+            left.count(left.count() + 1 + right.count());
+        }
+
+        parent.incrementIndex();
+        parent.leftShift().decrementCount().decrementIndex();
+        parent.child(left);
+        allocator.unused(right.node());
+    }
+
+    public boolean remove(final K key) {
+        final Function<MutableBytes,Boolean> func = (MutableBytes bytes) -> {
+            final Node.Mutable<K,V> rootNode = mutable(bytes, root);
+            Node.Mutable<K,V> node = rootNode;
+            while(!node.leaf()) {
+                route(node, key);
+                Node.Mutable<K,V> child = mutable(bytes, node.child());
+                if(child.count() <= minKeys(child)) {
+                    fix(bytes, node, child);
+                    route(node, key);
+                    child = mutable(bytes, node.child());
+                }
+
+                node = child;
+            }
+
+            final boolean found = node.find(key);
+            if(found) {
+                node.incrementIndex();
+                node.leftShift().decrementCount();
+            }
+
+            //a merge emptied the root, its only child takes over
+            if(!rootNode.leaf() && rootNode.count() == 0) {
+                root = rootNode.index(0).child();
+                allocator.unused(rootNode.node());
+            }
+
+            return Boolean.valueOf(found);
+        };
+
+        return viewBytes.withWrite(func).booleanValue();
+    }
+
+    private Node.Immutable<K,V> firstLeaf(final ImmutableBytes bytes) {
+        Node.Immutable<K,V> node = immutable(bytes, root);
+        while(!node.leaf()) {
+            node = immutable(bytes, node.index(0).child());
+        }
+
+        return node;
+    }
+
+    //every entry in key order, following the leaves from first to last
+    public void forEach(final BiConsumer<? super K, ? super V> consumer) {
+        viewBytes.withRead((bytes) -> {
+                final Node.Immutable<K,V> leaf = firstLeaf(bytes);
+                while(true) {
+                    for(int i = 0; i < leaf.count(); ++i) {
+                        consumer.accept(leaf.keyAtIndex(i), leaf.valueAtIndex(i));
+                    }
+
+                    final int next = nextLeaf(leaf);
+                    if(next == NO_LEAF) {
+                        return;
+                    }
+
+                    leaf.point(bytes, next);
+                }
+            });
+    }
+
+    //Walks the leaves from the one from belongs in, so it only ever holds one leaf
+    private class LeafCursor implements Cursor<K,V> {
+        private final K to;
+        private final ImmutableBytes bytes;
+        private Node.Immutable<K,V> leaf;
+        private boolean open = true;
+
+        LeafCursor(final K from, final K to) {
+            this.to = to;
+            this.bytes = viewBytes.forRead();
+            try {
+                Node.Immutable<K,V> node = immutable(bytes, root);
+                while(!node.leaf()) {
+                    if(from != null) {
+                        route(node, from);
+                    }
+
+                    node = immutable(bytes, node.child());
+                }
+
+                if(from != null) {
+                    node.find(from);
+                }
+
+                this.leaf = node;
+                advance();
+            }
+            catch(RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        //leaves the leaf on the entry to give, closes when there isn't one
+        private void advance() {
+            while(leaf.index() == leaf.count()) {
+                final int next = nextLeaf(leaf);
+                if(next == NO_LEAF) {
+                    close();
+                    return;
+                }
+
+                leaf.point(bytes, next);
+            }
+
+            if(to != null && leaf.compareKeyAt(to, leaf.index()) <= 0) {
+                close();
+            }
+        }
+
+        public boolean hasNext() {
+            return open;
+        }
+
+        public Entry<K,V> next() {
+            if(!open) {
+                throw new NoSuchElementException();
+            }
+
+            final Entry<K,V> ret = new SimpleImmutableEntry<>(leaf.key(), leaf.value());
+            leaf.incrementIndex();
+            advance();
+            return ret;
+        }
+
+        public void close() {
+            if(open) {
+                open = false;
+                bytes.stop();
+            }
+        }
+    }
+
+    //entries from from up to but not including to, either can be null for no bound
+    public Cursor<K,V> scan(final K from, final K to) {
+        return new LeafCursor(from, to);
+    }
+
+    public long size() {
+        final Function<ImmutableBytes,Long> func = (ImmutableBytes bytes) -> {
+            final Node.Immutable<K,V> leaf = firstLeaf(bytes);
+            long ret = leaf.count();
+            for(int next = nextLeaf(leaf); next != NO_LEAF; next = nextLeaf(leaf)) {
+                ret += leaf.point(bytes, next).count();
+            }
+
+            return Long.valueOf(ret);
+        };
+
+        return viewBytes.withRead(func).longValue();
+    }
+
+    public int height() {
+        final Function<ImmutableBytes,Integer> func = (ImmutableBytes bytes) -> {
+            int ret = 1;
+            for(Node.Immutable<K,V> node = immutable(bytes, root); !node.leaf(); ++ret) {
+                node = immutable(bytes, node.index(0).child());
+            }
+
+            return Integer.valueOf(ret);
+        };
+
+        return viewBytes.withRead(func).intValue();
+    }
+
+    public List<K> keys() {
+        final List<K> ret = new ArrayList<>();
+        forEach((k, v) -> { ret.add(k); });
+        return ret;
+    }
+
+    //keys sorted and between their separators, no node over or (except the root) under
+    //filled, all leaves at one depth, and the leaves linked in the order they are in the tree
+    public boolean isValid() {
+        final Function<ImmutableBytes,Boolean> func = (ImmutableBytes bytes) -> {
+            final List<Integer> leaves = new ArrayList<>();
+            if(!valid(bytes, root, -1L, -1L, 0, new int[] { -1 }, leaves)) {
+                return Boolean.FALSE;
+            }
+
+            Node.Immutable<K,V> leaf = firstLeaf(bytes);
+            for(int i = 0; i < leaves.size(); ++i) {
+                if(leaf.node() != leaves.get(i)) {
+                    return Boolean.FALSE;
+                }
+
+                final int next = nextLeaf(leaf);
+                if((i == leaves.size() - 1) != (next == NO_LEAF)) {
+                    return Boolean.FALSE;
+                }
+
+                if(next != NO_LEAF) {
+                    leaf = immutable(bytes, next);
+                }
+            }
+
+            return Boolean.TRUE;
+        };
+
+        return viewBytes.withRead(func).booleanValue();
+    }
+
+    //low and high are where the separators around this node are, -1 for none
+    private boolean valid(final ImmutableBytes bytes, final int id, final long low, final long high,
+                          final int depth, final int[] leafDepth, final List<Integer> leaves) {
+        final Node.Immutable<K,V> node = immutable(bytes, id);
+        final Record<K> record = node.keyRecord;
+        if(!node.isSorted() || node.count() > (node.leaf() ? maxLeafKeys : maxInnerKeys)) {
+            return false;
+        }
+
+        if(id != root && node.count() < minKeys(node)) {
+            return false;
+        }
+
+        if(node.count() > 0) {
+            if(low != -1L && record.compareInPlace(bytes, node.keyPos(0), low) < 0) {
+                return false;
+            }
+
+            if(high != -1L && record.compareInPlace(bytes, node.keyPos(node.count() - 1), high) >= 0) {
+                return false;
+            }
+        }
+
+        if(node.leaf()) {
+            leaves.add(id);
+            if(leafDepth[0] == -1) {
+                leafDepth[0] = depth;
+            }
+
+            return leafDepth[0] == depth;
+        }
+
+        for(int i = 0; i <= node.count(); ++i) {
+            final long childLow = (i == 0) ? low : node.keyPos(i - 1);
+            final long childHigh = (i == node.count()) ? high : node.keyPos(i);
+            if(!valid(bytes, node.childAtIndex(i), childLow, childHigh, depth + 1, leafDepth, leaves)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
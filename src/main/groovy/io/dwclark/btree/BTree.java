@@ -1,18 +1,32 @@
 package io.dwclark.btree;
 
+import io.dwclark.btree.io.FalseLock;
+import io.dwclark.btree.io.FixedBuffer;
 import io.dwclark.btree.io.ImmutableBytes;
 import io.dwclark.btree.io.MutableBytes;
 import io.dwclark.btree.io.ViewBytes;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.Map.Entry;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BTree<K,V> {
 
@@ -23,43 +37,447 @@ public class BTree<K,V> {
     private final ViewBytes viewBytes;
     private final BlockAllocator allocator;
     private final NodeFactory<K,V> factory;
+    private final NodeLatches latches;
+    private final boolean header;
+    //writers share it, save takes it alone (see save)
+    private final ReadWriteLock saveGate;
 
     public int getRoot() { return root; }
     public BlockAllocator getAllocator() { return allocator; }
     
-    private int root;
+    private volatile int root;
 
+    //A thread safe tree latches nodes as it goes down (latch crabbing) instead of
+    //relying on the view bytes for locking, so the views it uses must be able to be
+    //used at the same time (e.g. ChannelBuffers with Locking.NONE, Locking.PAGE keeps a page
+    //latched after the node is let go and can deadlock against node latches). Searches don't
+    //latch unless a writer keeps getting in the way. Whole tree walks (breadthFirst and
+    //everything using it) take no latches. Every node gets its own latch, so the allocator of a
+    //thread safe tree can't hand out more than NodeLatches.MAX_NODES blocks.
     public BTree(final ViewBytes viewBytes, final BlockAllocator allocator,
-                 final NodeFactory<K,V> factory, final int root) {
+                 final NodeFactory<K,V> factory, final int root, final boolean threadSafe) {
+        this(viewBytes, allocator, factory, root, threadSafe, false);
+    }
+
+    private BTree(final ViewBytes viewBytes, final BlockAllocator allocator, final NodeFactory<K,V> factory,
+                  final int root, final boolean threadSafe, final boolean header) {
+        if(threadSafe && (allocator.getMax() > NodeLatches.MAX_NODES || allocator.getCurrent() > NodeLatches.MAX_NODES)) {
+            throw new IllegalArgumentException("a thread safe tree can use at most " + NodeLatches.MAX_NODES + " blocks");
+        }
+
         this.viewBytes = viewBytes;
         this.allocator = allocator;
         this.factory = factory;
         this.root = root;
+        this.latches = new NodeLatches(threadSafe);
+        this.header = header;
+        this.saveGate = (header && threadSafe) ? new ReentrantReadWriteLock() : FalseLock.rwLock();
+    }
+
+    public BTree(final ViewBytes viewBytes, final BlockAllocator allocator,
+                 final NodeFactory<K,V> factory, final int root) {
+        this(viewBytes, allocator, factory, root, false);
+    }
+
+    public BTree(final ViewBytes viewBytes, final NodeFactory<K,V> factory, final boolean threadSafe) {
+        this(viewBytes, new BlockAllocator(maxBlocks(threadSafe), threadSafe), factory, 0, threadSafe);
+        this.root = viewBytes.withWrite((bytes) -> { return nextNode(bytes); }).node();
     }
     
     public BTree(final ViewBytes viewBytes, final NodeFactory<K,V> factory) {
-        this(viewBytes, new BlockAllocator(0xFFFF_FFFFL, false), factory, 0);
-        this.root = viewBytes.withWrite((bytes) -> { return nextNode(bytes); }).node();
+        this(viewBytes, factory, false);
+    }
+
+    private static long maxBlocks(final boolean threadSafe) {
+        return threadSafe ? NodeLatches.MAX_NODES : 0xFFFF_FFFFL;
     }
     
+    //A tree with a header in block 0 and its nodes after it, so it can be saved and opened again
+    public static <K,V> BTree<K,V> create(final ViewBytes viewBytes, final NodeFactory<K,V> factory,
+                                          final boolean threadSafe) {
+        if(factory.getBufferSize() < Header.SIZE) {
+            throw new IllegalArgumentException("nodes are too small to hold a header");
+        }
+
+        Header.recordId(factory.keyRecord());
+        Header.recordId(factory.valueRecord());
+        final BlockAllocator allocator = new BlockAllocator(maxBlocks(threadSafe), 1L, new TreeSet<>(), threadSafe);
+        final BTree<K,V> ret = new BTree<>(viewBytes, allocator, factory, 0, threadSafe, true);
+        ret.root = viewBytes.withWrite((bytes) -> { return ret.nextNode(bytes).count(0); }).node();
+        ret.save();
+        return ret;
+    }
+
+    public static <K,V> BTree<K,V> create(final ViewBytes viewBytes, final NodeFactory<K,V> factory) {
+        return create(viewBytes, factory, false);
+    }
+
+    //Opens a tree made by create as of its last save
+    @SuppressWarnings("unchecked")
+    public static <K,V> BTree<K,V> open(final ViewBytes viewBytes, final boolean threadSafe) {
+        final Function<ImmutableBytes,Header> read = Header::read;
+        final Header header = viewBytes.withRead(read);
+        final NodeFactory<K,V> factory = new StandardFactory<>((Record<K>) header.keyRecord, (Record<V>) header.valueRecord,
+                                                               header.bufferSize, header.search, header.layout);
+        final BlockAllocator allocator = new BlockAllocator(maxBlocks(threadSafe), header.current, header.unused, threadSafe);
+        return new BTree<>(viewBytes, allocator, factory, header.root, threadSafe, true);
+    }
+
+    public static <K,V> BTree<K,V> open(final ViewBytes viewBytes) {
+        return open(viewBytes, false);
+    }
+
+    //Writes the header: the root and the allocator's state along with what the nodes look like.
+    //The unused list is written into the unused blocks themselves, so save keeps every writer
+    //out until it is done, otherwise a split could be given one of those blocks and have it
+    //overwritten. Nodes are changed in place, so what is on disk is only a tree that can be
+    //opened right after a save and a flush of the view bytes (e.g. ChannelBuffers.flush).
+    public void save() {
+        if(!header) {
+            throw new IllegalStateException("only trees made with create have a header");
+        }
+
+        final Lock gate = saveGate.writeLock();
+        gate.lock();
+        try {
+            viewBytes.withWrite((bytes) -> {
+                    new Header(factory.keyRecord(), factory.valueRecord(), factory.getBufferSize(), factory.layout(),
+                               factory.search(), root, allocator.getCurrent(), allocator.getUnused()).write(bytes);
+                });
+        }
+        finally {
+            gate.unlock();
+        }
+    }
+
+    //all changes to the tree go through these so save can keep them out
+    private void withWrite(final Consumer<MutableBytes> consumer) {
+        final Lock gate = saveGate.readLock();
+        gate.lock();
+        try {
+            viewBytes.withWrite(consumer);
+        }
+        finally {
+            gate.unlock();
+        }
+    }
+
+    private <T> T applyWrite(final Function<MutableBytes,T> func) {
+        final Lock gate = saveGate.readLock();
+        gate.lock();
+        try {
+            return viewBytes.withWrite(func);
+        }
+        finally {
+            gate.unlock();
+        }
+    }
+
     protected Node.Mutable<K,V> nextNode(final MutableBytes bytes) {
         return factory.mutable(bytes, (int) allocator.next()).leaf(true);
     }
 
-    private V search(final Node.Immutable<K,V> node, final K key) {
-        if(node.find(key)) {
+    //What an operation is after. Searches, inserts and removes only find and place entries
+    //through a probe, so a tree of primitives can do it without boxing (see LongLongBTree)
+    protected abstract static class Probe<K,V> {
+        //moves the node's index to the key, true if the key is there
+        protected abstract boolean find(Node.Immutable<K,V> node);
+
+        //what a search returns when it finds the key, never null
+        protected abstract Object found(Node.Immutable<K,V> node);
+
+        //writes the key and value at the node's index
+        protected abstract void place(Node.Mutable<K,V> node);
+
+        //writes only the value at the node's index
+        protected abstract void update(Node.Mutable<K,V> node);
+
+        //a probe for the entry at the node's index
+        protected abstract Probe<K,V> at(Node.Immutable<K,V> node);
+    }
+
+    static class Boxed<K,V> extends Probe<K,V> {
+        K key;
+        V value;
+
+        Boxed(final K key, final V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        protected boolean find(final Node.Immutable<K,V> node) {
+            return node.find(key);
+        }
+
+        protected Object found(final Node.Immutable<K,V> node) {
             return node.value();
         }
+
+        protected void place(final Node.Mutable<K,V> node) {
+            node.key(key).value(value);
+        }
+
+        protected void update(final Node.Mutable<K,V> node) {
+            node.value(value);
+        }
+
+        protected Probe<K,V> at(final Node.Immutable<K,V> node) {
+            return new Boxed<>(node.key(), node.value());
+        }
+    }
+
+    //what a search needs, kept per thread so searching allocates nothing: the function
+    //handed to withRead and one node moved down the tree
+    private class Lookup implements Function<ImmutableBytes,Object> {
+        final Boxed<K,V> keyed = new Boxed<>(null, null);
+        Probe<K,V> probe;
+        Node.Immutable<K,V> cursor;
+
+        Node.Immutable<K,V> cursor(final ImmutableBytes bytes, final int node) {
+            if(cursor == null) {
+                cursor = factory.immutable(bytes, node);
+                return cursor;
+            }
+            else {
+                return cursor.point(bytes, node);
+            }
+        }
+
+        public Object apply(final ImmutableBytes bytes) {
+            if(!latches.isThreadSafe()) {
+                return search(cursor(bytes, root), probe);
+            }
+            
+            for(int i = 0; i < OPTIMISTIC_TRIES; ++i) {
+                final Object ret = optimisticSearch(this, bytes);
+                if(ret != RESTART) {
+                    return ret;
+                }
+            }
+            
+            return latchedSearch(bytes, probe);
+        }
+    }
+
+    private final ThreadLocal<Lookup> lookups = ThreadLocal.withInitial(() -> new Lookup());
+
+    private Object search(final Node.Immutable<K,V> cursor, final Probe<K,V> probe) {
+        while(!probe.find(cursor)) {
+            if(cursor.leaf()) {
+                return null;
+            }
+
+            cursor.point(cursor.bytes(), cursor.child());
+        }
+
+        return probe.found(cursor);
+    }
+    
+    private Object search(final NodeLatches.Held held, final ImmutableBytes bytes,
+                          final Node.Immutable<K,V> node, final Probe<K,V> probe) {
+        if(probe.find(node)) {
+            return probe.found(node);
+        }
         else if(node.leaf()) {
             return null;
         }
         else {
-            return search(node.childNode(), key);
+            final int child = node.child();
+            held.lock(child);
+            held.unlock(node.node());
+            return search(held, bytes, factory.immutable(bytes, child), probe);
         }
     }
     
+    //optimistic reads that fail this often fall back to latching
+    private static final int OPTIMISTIC_TRIES = 4;
+    private static final Object RESTART = new Object();
+
+    //Goes down without latching anything, validating each node's version after reading
+    //from it and before moving on to the child. Anything read from a node that fails
+    //validation may be garbage, including exceptions. Returns RESTART if a writer got in the way.
+    private Object optimisticSearch(final Lookup lookup, final ImmutableBytes bytes) {
+        final Probe<K,V> probe = lookup.probe;
+        final long rootVersion = latches.rootVersion();
+        int node = root;
+        long version = latches.version(node);
+        if(rootVersion == 0L || version == 0L || !latches.validateRoot(rootVersion)) {
+            return RESTART;
+        }
+
+        while(true) {
+            final boolean done;
+            final Object value;
+            int child = -1;
+            try {
+                final Node.Immutable<K,V> current = lookup.cursor(bytes, node);
+                if(current.count() > factory.getMaxKeys()) {
+                    return RESTART;
+                }
+                
+                final boolean found = probe.find(current);
+                done = found || current.leaf();
+                value = found ? probe.found(current) : null;
+                if(!done) {
+                    child = current.child();
+                }
+            }
+            catch(RuntimeException e) {
+                if(latches.validate(node, version)) {
+                    throw e;
+                }
+                
+                return RESTART;
+            }
+
+            if(!latches.validate(node, version)) {
+                return RESTART;
+            }
+
+            if(done) {
+                return value;
+            }
+
+            //the child's version has to be taken while the pointer to it is still good
+            final long childVersion = latches.version(child);
+            if(childVersion == 0L || !latches.validate(node, version)) {
+                return RESTART;
+            }
+
+            node = child;
+            version = childVersion;
+        }
+    }
+
+    private Object latchedSearch(final ImmutableBytes bytes, final Probe<K,V> probe) {
+        final NodeLatches.Held held = latches.forRead();
+        try {
+            final Node.Immutable<K,V> rootNode = factory.immutable(bytes, lockRoot(held));
+            held.unlockRoot();
+            return search(held, bytes, rootNode, probe);
+        }
+        finally {
+            held.releaseAll();
+        }
+    }
+
+    //null if not found, otherwise what the probe found
+    protected Object search(final Probe<K,V> probe) {
+        final Lookup lookup = lookups.get();
+        lookup.probe = probe;
+        try {
+            return viewBytes.withRead(lookup);
+        }
+        finally {
+            lookup.probe = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
     public V search(final K key) {
-        return viewBytes.withRead((bytes) -> { return search(factory.immutable(bytes, root), key); });
+        final Boxed<K,V> keyed = lookups.get().keyed;
+        keyed.key = key;
+        try {
+            return (V) search(keyed);
+        }
+        finally {
+            keyed.key = null;
+        }
+    }
+
+    //Looks up keys[order[from, to)] under node, keys in order are increasing, so the
+    //node's index only moves forward. Keys going to the same child go down together.
+    private void searchAll(final NodeLatches.Held held, final Node.Immutable<K,V> node, final Boxed<K,V> probe,
+                           final List<? extends K> keys, final int[] order, int from, final int to, final Object[] found) {
+        node.index(0);
+        while(from < to) {
+            probe.key = keys.get(order[from]);
+            if(probe.find(node)) {
+                found[order[from++]] = node.value();
+            }
+            else if(node.leaf()) {
+                ++from;
+            }
+            else {
+                final int index = node.index();
+                int end = from + 1;
+                while(end < to && (index == node.count() || node.compareKeyAt(keys.get(order[end]), index) < 0)) {
+                    ++end;
+                }
+
+                final int child = node.child();
+                held.lock(child);
+                searchAll(held, factory.immutable(node.bytes(), child), probe, keys, order, from, end, found);
+                held.unlock(child);
+                from = end;
+            }
+        }
+    }
+
+    //the positions of keys in the order of the tree's key record
+    private int[] sortedOrder(final List<? extends K> keys) {
+        final Record<K> keyRecord = factory.keyRecord();
+        final int size = keyRecord.size();
+        final MutableBytes scratch = new FixedBuffer(keys.size() * size, false).forWrite();
+        try {
+            final Integer[] order = new Integer[keys.size()];
+            for(int i = 0; i < order.length; ++i) {
+                keyRecord.place(scratch, (long) i * size, keys.get(i));
+                order[i] = i;
+            }
+
+            Arrays.sort(order, (lhs, rhs) -> keyRecord.compareInPlace(scratch, (long) lhs * size, (long) rhs * size));
+            final int[] ret = new int[order.length];
+            for(int i = 0; i < ret.length; ++i) {
+                ret[i] = order[i];
+            }
+
+            return ret;
+        }
+        finally {
+            scratch.stop();
+        }
+    }
+
+    //Values for many keys in the order the keys were given, null where a key isn't in the
+    //tree. The keys are sorted and looked up in one read, nodes on the way to more than
+    //one key are visited once for all of them. A thread safe tree latches the path the
+    //lookups are on instead of searching optimistically.
+    @SuppressWarnings("unchecked")
+    public List<V> searchAll(final List<? extends K> keys) {
+        final Object[] found = new Object[keys.size()];
+        if(keys.isEmpty()) {
+            return (List<V>) Arrays.asList(found);
+        }
+
+        final int[] order = sortedOrder(keys);
+        viewBytes.withRead((bytes) -> {
+                final NodeLatches.Held held = latches.forRead();
+                try {
+                    final Node.Immutable<K,V> rootNode = factory.immutable(bytes, lockRoot(held));
+                    held.unlockRoot();
+                    searchAll(held, rootNode, new Boxed<>(null, null), keys, order, 0, order.length, found);
+                }
+                finally {
+                    held.releaseAll();
+                }
+            });
+
+        return (List<V>) Arrays.asList(found);
+    }
+
+    //the root can only change while the root latch is held, so read it under the latch
+    private int lockRoot(final NodeLatches.Held held) {
+        held.lockRoot();
+        final int ret = root;
+        held.lock(ret);
+        return ret;
+    }
+
+    //nodes are let go before they are given back, another operation may reuse them right away
+    private void free(final NodeLatches.Held held, final int node) {
+        held.unlock(node);
+        allocator.unused(node);
     }
     
     private void split(final Node.Mutable<K,V> parent) {
@@ -68,24 +486,19 @@ public class BTree<K,V> {
         final int minKeys = factory.getMinKeys();
         final Node.Mutable<K,V> child = (Node.Mutable<K,V>) parent.childNode().index(minKeys);
         final Node.Mutable<K,V> sibling = nextNode(bytes);
-        final K key = child.key();
-        final V value = child.value();
 
-        child.incrementIndex();
-        bytes.copy(sibling.pos(), bytes, child.pos(),
-                   (minKeys * parent.entrySize()) + Node.CHILD_SIZE);
+        sibling.move(0, child, minKeys + 1, minKeys);
         
         sibling.leaf(child.leaf()).count(minKeys);
         
         child.count(minKeys);
         
-        parent.rightShift().child(child).key(key).value(value).incrementCount().incrementIndex();
+        parent.rightShift().child(child).entry(child).incrementCount().incrementIndex();
         parent.child(sibling);
         parent.index(restoreIndex);
     }
 
-    private void merge(final Node.Mutable<K,V> parent) {
-        final MutableBytes bytes = parent.bytes();
+    private void merge(final NodeLatches.Held held, final Node.Mutable<K,V> parent) {
         final int minKeys = factory.getMinKeys();
         final Node.Mutable<K,V> leftChild = parent.leftChildNode();
         final Node.Mutable<K,V> rightChild = parent.rightChildNode();
@@ -96,15 +509,12 @@ public class BTree<K,V> {
 
         //copy parent value in
         leftChild.index(minKeys);
-        leftChild.key(parent.key());
-        leftChild.value(parent.value());
-        leftChild.incrementIndex();
+        leftChild.entry(parent);
 
         //move right child into left child, deallocate right child
-        bytes.copy(leftChild.pos(), bytes, rightChild.pos(),
-                   (minKeys * parent.entrySize()) + Node.CHILD_SIZE);
+        leftChild.move(minKeys + 1, rightChild, 0, minKeys);
         leftChild.count(1 + (2 * minKeys));
-        allocator.unused(rightChild.node());
+        free(held, rightChild.node());
 
         //remove value from parent
         parent.incrementIndex();
@@ -112,56 +522,204 @@ public class BTree<K,V> {
         parent.leftChild(leftChild);
     }
 
-    private void insertNotFull(final Node.Mutable<K,V> node, final K key, final V value) {
+    private void insertNotFull(final NodeLatches.Held held, final Node.Mutable<K,V> node, final Probe<K,V> probe) {
         final int maxKeys = factory.getMaxKeys();
         
         //if is update, can always safely perform
-        if(node.find(key)) {
-            node.value(value);
+        if(probe.find(node)) {
+            probe.update(node);
             return;
         }
         
         if(node.leaf()) {
             //guaranteed to not be full because we have pre-split if necessary
-            node.rightShift().key(key).value(value).incrementCount();
+            probe.place(node.rightShift());
+            node.incrementCount();
         }
         else {
+            final int child = node.child();
+            held.lock(child);
+            
             //split if at max
             if(node.childNode().count() == maxKeys) {
                 split(node);
                 //after split, we may need to re-position index
                 //so that we choose the correct child node
-                node.find(key);
+                if(probe.find(node)) {
+                    //key was the median, it moved up into this node
+                    probe.update(node);
+                    return;
+                }
+
+                if(node.child() != child) {
+                    held.lock(node.child());
+                    held.unlock(child);
+                }
             }
 
-            insertNotFull(node.childNode(), key, value);
+            //the child can take a key without splitting, so nothing above it can change
+            final Node.Mutable<K,V> next = node.childNode();
+            held.unlock(node.node());
+            insertNotFull(held, next, probe);
         }
     }
 
-    private void insert(final Node.Mutable<K,V> rootNode, final K key, final V value) {
+    private void insert(final NodeLatches.Held held, final Node.Mutable<K,V> rootNode, final Probe<K,V> probe) {
         final int maxKeys = factory.getMaxKeys();
         
         if(rootNode.count() == maxKeys) {
             //root is full, need to split it and then call insertNonFull on the new root
             final Node.Mutable<K,V> newRoot = nextNode(rootNode.bytes);
+            held.lock(newRoot.node());
             this.root = newRoot.node();
             newRoot.leaf(false);
             newRoot.count(0);
             newRoot.child(rootNode);
             split(newRoot);
-            insertNotFull(newRoot, key, value);
+            held.unlock(rootNode.node());
+            held.unlockRoot();
+            insertNotFull(held, newRoot, probe);
         }
         else {
-            insertNotFull(rootNode, key, value);
+            held.unlockRoot();
+            insertNotFull(held, rootNode, probe);
         }
     }
     
+    protected void insert(final Probe<K,V> probe) {
+        withWrite((bytes) -> {
+                final NodeLatches.Held held = latches.forWrite();
+                try {
+                    insert(held, factory.mutable(bytes, lockRoot(held)), probe);
+                }
+                finally {
+                    held.releaseAll();
+                }
+            });
+    }
+
     public void insert(final K key, final V value) {
-        viewBytes.withWrite((bytes) -> { insert(factory.mutable(bytes, root), key, value); });
+        insert(new Boxed<>(key, value));
+    }
+
+    private void probe(final Boxed<K,V> probe, final List<? extends Entry<? extends K, ? extends V>> batch, final int at) {
+        final Entry<? extends K, ? extends V> entry = batch.get(at);
+        probe.key = entry.getKey();
+        probe.value = entry.getValue();
+    }
+
+    //called right after batch[at - 1] is written at the node's index, while it is still there
+    private void checkOrder(final Node.Immutable<K,V> node, final List<? extends Entry<? extends K, ? extends V>> batch,
+                            final int at) {
+        if(at < batch.size() && node.compareKeyAt(batch.get(at).getKey(), node.index()) <= 0) {
+            throw new IllegalArgumentException("key out of order: " + batch.get(at).getKey());
+        }
+    }
+
+    //Inserts batch[from, to) under node, which has room for all of them. Keys going to the
+    //same child go down together, up to as many as the child can take without splitting.
+    //Keys are increasing, so the node's index only moves forward.
+    private void insertAll(final NodeLatches.Held held, final Node.Mutable<K,V> node,
+                           final List<? extends Entry<? extends K, ? extends V>> batch,
+                           final Boxed<K,V> probe, int from, final int to) {
+        final int maxKeys = factory.getMaxKeys();
+        node.index(0);
+        while(from < to) {
+            probe(probe, batch, from);
+            if(probe.find(node)) {
+                probe.update(node);
+            }
+            else if(node.leaf()) {
+                probe.place(node.rightShift());
+                node.incrementCount();
+            }
+            else {
+                int child = node.child();
+                held.lock(child);
+                if(node.childNode().count() == maxKeys) {
+                    split(node);
+                    if(probe.find(node)) {
+                        //key was the median, it moved up into this node
+                        held.unlock(child);
+                        probe.update(node);
+                        checkOrder(node, batch, ++from);
+                        node.incrementIndex();
+                        continue;
+                    }
+
+                    //find may have moved the index to the new right sibling
+                    if(node.child() != child) {
+                        held.lock(node.child());
+                        held.unlock(child);
+                        child = node.child();
+                    }
+                }
+
+                final Node.Mutable<K,V> next = node.childNode();
+                final int index = node.index();
+                int end = Math.min(to, from + (maxKeys - next.count()));
+                if(index < node.count()) {
+                    for(int i = from + 1; i < end; ++i) {
+                        if(node.compareKeyAt(batch.get(i).getKey(), index) >= 0) {
+                            end = i;
+                            break;
+                        }
+                    }
+                }
+
+                insertAll(held, next, batch, probe, from, end);
+                held.unlock(child);
+                from = end;
+                continue;
+            }
+
+            checkOrder(node, batch, ++from);
+            node.incrementIndex();
+        }
+    }
+
+    //Inserts entries in increasing key order with one write lock, going down each path once
+    //for all the keys that share it. Keys already in the tree get their values updated.
+    //If a key isn't greater than the one before it the entries before it are kept and an
+    //IllegalArgumentException is thrown.
+    public void insertAll(final List<? extends Entry<? extends K, ? extends V>> sorted) {
+        if(sorted.isEmpty()) {
+            return;
+        }
+
+        withWrite((bytes) -> {
+                final int maxKeys = factory.getMaxKeys();
+                final Boxed<K,V> probe = new Boxed<>(null, null);
+                final NodeLatches.Held held = latches.forWrite();
+                try {
+                    Node.Mutable<K,V> top = factory.mutable(bytes, lockRoot(held));
+                    int from = 0;
+                    while(from < sorted.size()) {
+                        if(top.count() == maxKeys) {
+                            final Node.Mutable<K,V> newRoot = nextNode(bytes);
+                            held.lock(newRoot.node());
+                            this.root = newRoot.node();
+                            newRoot.leaf(false);
+                            newRoot.count(0);
+                            newRoot.child(top);
+                            split(newRoot);
+                            held.unlock(top.node());
+                            top = newRoot;
+                        }
+
+                        final int end = Math.min(sorted.size(), from + (maxKeys - top.count()));
+                        insertAll(held, top, sorted, probe, from, end);
+                        from = end;
+                    }
+                }
+                finally {
+                    held.releaseAll();
+                }
+            });
     }
 
-    private boolean removeLeaf(final Node.Mutable<K,V> node, final K key) {
-        if(node.find(key)) {
+    private boolean removeLeaf(final Node.Mutable<K,V> node, final Probe<K,V> probe) {
+        if(probe.find(node)) {
             node.incrementIndex();
             node.leftShift().decrementCount();
             return true;
@@ -171,60 +729,74 @@ public class BTree<K,V> {
         }
     }
 
-    private Node.Mutable<K,V> maximumNode(final Node.Mutable<K,V> node) {
+    //nodes on the way down stay latched, the remove that follows lets them go
+    private Node.Mutable<K,V> maximumNode(final NodeLatches.Held held, final Node.Mutable<K,V> node) {
         if(node.leaf()) {
             return node;
         }
         else {
             node.index(node.count());
-            return maximumNode(node.childNode());
+            held.lock(node.child());
+            return maximumNode(held, node.childNode());
         }
     }
 
-    private Node.Mutable<K,V> minimumNode(final Node.Mutable<K,V> node) {
+    private Node.Mutable<K,V> minimumNode(final NodeLatches.Held held, final Node.Mutable<K,V> node) {
         if(node.leaf()) {
             return node;
         }
         else {
             node.index(0);
-            return minimumNode(node.childNode());
+            held.lock(node.child());
+            return minimumNode(held, node.childNode());
         }
     }
 
-    private void removeInnerNode(final Node.Mutable<K,V> node, final K key) {
+    //node stays latched until the operation is done, its key is replaced last
+    private void removeInnerNode(final NodeLatches.Held held, final Node.Mutable<K,V> node, final Probe<K,V> probe) {
         final int minDegree = factory.getMinDegree();
+        held.lock(node.leftChild());
+        held.lock(node.rightChild());
         final Node.Mutable<K,V> left = node.leftChildNode();
         final Node.Mutable<K,V> right = node.rightChildNode();
 
         if(left.count() >= minDegree) {
-            final Node.Mutable<K,V> pred = maximumNode(left);
+            held.unlock(right.node());
+            final Node.Mutable<K,V> pred = maximumNode(held, left);
             pred.index(pred.count() - 1);
-            final K predecessorKey = pred.key();
-            final V predecessorValue = pred.value();
+            final Probe<K,V> predecessor = probe.at(pred);
             left.index(0);
-            remove(left, predecessorKey);
-            node.key(predecessorKey);
-            node.value(predecessorValue);
+            remove(held, left, predecessor);
+            predecessor.place(node);
         }
         else if(right.count() >= minDegree) {
-            final Node.Mutable<K,V> succ = minimumNode(right);
+            held.unlock(left.node());
+            final Node.Mutable<K,V> succ = minimumNode(held, right);
             succ.index(0);
-            final K successorKey = succ.key();
-            final V successorValue = succ.value();
+            final Probe<K,V> successor = probe.at(succ);
             right.index(0);
-            remove(right, successorKey);
-            node.key(successorKey);
-            node.value(successorValue);
+            remove(held, right, successor);
+            successor.place(node);
         }
         else {
-            merge(node);
-            node.find(key);
-            remove(node.leftChildNode(), key);
+            merge(held, node);
+            probe.find(node);
+            remove(held, node.leftChildNode(), probe);
         }
     }
 
-    private void fixUpChildren(final Node.Mutable<K,V> parent, final K key) {
+    private void fixUpChildren(final NodeLatches.Held held, final Node.Mutable<K,V> parent, final Probe<K,V> probe) {
         final int minKeys = factory.getMinKeys();
+        final int index = parent.index();
+        final int leftId = (index == 0) ? -1 : parent.childAtIndex(index - 1);
+        final int childId = parent.child();
+        final int rightId = (index == parent.count()) ? -1 : parent.childAtIndex(index + 1);
+        for(int id : new int[] { leftId, childId, rightId }) {
+            if(id != -1) {
+                held.lock(id);
+            }
+        }
+        
         final Node.Mutable<K,V> child = parent.leftChildNode();
         final Node.Mutable<K,V> leftSibling = parent.leftSiblingNode();
         final Node.Mutable<K,V> rightSibling = parent.rightChildNode();
@@ -233,15 +805,13 @@ public class BTree<K,V> {
             parent.decrementIndex();
             child.index(0);
             child.rightShift();
-            child.key(parent.key());
-            child.value(parent.value());
+            child.entry(parent);
             leftSibling.index(leftSibling.count());
             child.child(leftSibling.child());
             child.incrementCount();
 
             leftSibling.index(leftSibling.count() - 1);
-            parent.key(leftSibling.key());
-            parent.value(leftSibling.value());
+            parent.entry(leftSibling);
             
             leftSibling.decrementCount();
             parent.index(originalIndex);
@@ -249,14 +819,12 @@ public class BTree<K,V> {
         else if(rightSibling != null && rightSibling.count() > minKeys) {
             child.index(child.count());
             child.rightShift();
-            child.key(parent.key());
-            child.value(parent.value());
+            child.entry(parent);
             child.incrementIndex();
             child.child(rightSibling.child());
             child.incrementCount();
 
-            parent.key(rightSibling.key());
-            parent.value(rightSibling.value());
+            parent.entry(rightSibling);
 
             rightSibling.incrementIndex();
             rightSibling.leftShift();
@@ -264,50 +832,375 @@ public class BTree<K,V> {
         }
         else if(leftSibling != null) {
             parent.decrementIndex();
-            merge(parent);
-            parent.find(key);
+            merge(held, parent);
+            probe.find(parent);
+        }
+        else {
+            merge(held, parent);
+            probe.find(parent);
+        }
+
+        //only the child the remove continues into stays latched
+        final int next = parent.child();
+        for(int id : new int[] { leftId, childId, rightId }) {
+            if(id != next) {
+                held.unlock(id);
+            }
+        }
+    }
+
+    //lets go of a node on the way down. If it is the root and a merge emptied it
+    //its only child becomes the root
+    private void descend(final NodeLatches.Held held, final Node.Mutable<K,V> node) {
+        if(held.holdsRoot() && node.node() == root) {
+            if(node.count() == 0) {
+                this.root = node.leftChild();
+                free(held, node.node());
+            }
+            else {
+                held.unlock(node.node());
+            }
+
+            held.unlockRoot();
         }
         else {
-            merge(parent);
-            parent.find(key);
+            held.unlock(node.node());
         }
     }
     
-    private boolean remove(final Node.Mutable<K,V> node, final K key) {
+    private boolean remove(final NodeLatches.Held held, final Node.Mutable<K,V> node, final Probe<K,V> probe) {
         final int minKeys = factory.getMinKeys();
         
         if(node.leaf()) {
-            return removeLeaf(node, key);
+            return removeLeaf(node, probe);
         }
         else {
-            if(node.find(key)) {
-                removeInnerNode(node, key);
+            if(probe.find(node)) {
+                removeInnerNode(held, node, probe);
                 return true;
             }
 
+            held.lock(node.child());
             final Node.Mutable<K,V> child = node.leftChildNode();
-            if(child.count() > minKeys) {
-                return remove(child, key);
+            if(child.count() <= minKeys) {
+                fixUpChildren(held, node, probe);
             }
 
-            fixUpChildren(node, key);
-            return remove(node.leftChildNode(), key);
+            //the child can lose a key without underflowing, so nothing above it can change
+            final Node.Mutable<K,V> next = node.leftChildNode();
+            descend(held, node);
+            return remove(held, next, probe);
         }
     }
 
-    public boolean remove(final K key) {
+    protected boolean remove(final Probe<K,V> probe) {
         final Function<MutableBytes,Boolean> func = (MutableBytes bytes) -> {
-            final Node.Mutable<K,V> rootNode = factory.mutable(bytes, root);
-            final Boolean ret = Boolean.valueOf(remove(rootNode, key));
-            if(rootNode.count() == 0) {
-                this.root = rootNode.leftChild();
-                allocator.unused(rootNode.node());
+            final NodeLatches.Held held = latches.forWrite();
+            try {
+                final Node.Mutable<K,V> rootNode = factory.mutable(bytes, lockRoot(held));
+                final Boolean ret = Boolean.valueOf(remove(held, rootNode, probe));
+                if(held.holdsRoot() && rootNode.node() == root && rootNode.count() == 0 && !rootNode.leaf()) {
+                    this.root = rootNode.leftChild();
+                    free(held, rootNode.node());
+                }
+                
+                return ret;
+            }
+            finally {
+                held.releaseAll();
             }
-
-            return ret;
         };
         
-        return viewBytes.withWrite(func).booleanValue();
+        return applyWrite(func).booleanValue();
+    }
+
+    public boolean remove(final K key) {
+        return remove(new Boxed<>(key, null));
+    }
+
+    //the node of a level being filled by a load, the full one before it, and the level
+    //the separator between them went up to
+    private class Level {
+        Node.Mutable<K,V> open;
+        Node.Mutable<K,V> prev;
+        int landed;
+
+        Level(final Node.Mutable<K,V> open) {
+            this.open = open;
+        }
+    }
+
+    //Builds a tree bottom up from entries in key order. Each level fills one node at a time,
+    //when it has fill keys the next entry goes up a level as the separator and a new node is
+    //started, so nodes are allocated left to right and written once. Only the last node of
+    //a level can come up short, finish() evens it out with the node before it, either
+    //taking entries across the separator or merging the two when there aren't enough.
+    private class Loader {
+        private final MutableBytes bytes;
+        private final int fill;
+        private final int minKeys = factory.getMinKeys();
+        private final List<Level> levels = new ArrayList<>();
+        private Node.Mutable<K,V> last;
+        private int lastIndex;
+
+        Loader(final MutableBytes bytes, final Node.Mutable<K,V> leaf, final double fill) {
+            this.bytes = bytes;
+            this.fill = Math.max(minKeys, Math.min(factory.getMaxKeys(), (int) Math.round(fill * factory.getMaxKeys())));
+            levels.add(new Level(leaf));
+        }
+
+        private Node.Mutable<K,V> nextNode(final boolean leaf) {
+            return BTree.this.nextNode(bytes).leaf(leaf).count(0);
+        }
+
+        //false if the key isn't greater than the last one added
+        boolean add(final K key, final V value) {
+            if(last != null && last.compareKeyAt(key, lastIndex) <= 0) {
+                return false;
+            }
+
+            int child = -1;
+            for(int level = 0; ; ++level) {
+                if(level == levels.size()) {
+                    levels.add(new Level(nextNode(false)));
+                }
+
+                final Level at = levels.get(level);
+                final Node.Mutable<K,V> node = at.open;
+                node.index(node.count());
+                if(child != -1) {
+                    node.child(child);
+                }
+
+                if(node.count() < fill) {
+                    node.key(key).value(value).incrementCount();
+                    for(int i = 0; i < level; ++i) {
+                        levels.get(i).landed = level;
+                    }
+
+                    last = node;
+                    lastIndex = node.count() - 1;
+                    return true;
+                }
+
+                child = node.node();
+                at.prev = node;
+                at.open = nextNode(level == 0);
+            }
+        }
+
+        //links each level's last node to the level above and sets the root
+        void finish() {
+            for(int i = 0; i < levels.size(); ++i) {
+                final Node.Mutable<K,V> node = levels.get(i).open;
+                if(i > 0) {
+                    node.index(node.count());
+                    node.child(levels.get(i - 1).open);
+                }
+
+                if(i < levels.size() - 1 && node.count() < minKeys) {
+                    even(i);
+                }
+            }
+
+            Node.Mutable<K,V> top = levels.get(levels.size() - 1).open;
+            while(!top.leaf() && top.count() == 0) {
+                final int child = top.leftChild();
+                allocator.unused(top.node());
+                top = factory.mutable(bytes, child);
+            }
+
+            root = top.node();
+        }
+
+        private void even(final int level) {
+            final Level at = levels.get(level);
+            final Node.Mutable<K,V> left = at.prev;
+            final Node.Mutable<K,V> right = at.open;
+            final Node.Mutable<K,V> parent = levels.get(at.landed).open;
+            parent.index(parent.count() - 1);
+
+            if(left.count() + right.count() >= 2 * minKeys) {
+                //rotate enough entries through the separator to leave both at min keys or more
+                final int moving = minKeys - right.count();
+                right.move(moving, right, 0, right.count());
+                right.index(moving - 1);
+                right.entry(parent);
+                right.move(0, left, left.count() - moving + 1, moving - 1);
+                left.index(left.count() - moving);
+                parent.entry(left);
+                left.count(left.count() - moving);
+                right.count(right.count() + moving);
+            }
+            else {
+                //everything fits in the left node. The separator may be more than one level
+                //up, the empty nodes between it and the right node go away too
+                left.index(left.count());
+                left.entry(parent);
+                left.move(left.count() + 1, right, 0, right.count());
+                left.count(left.count() + 1 + right.count());
+                allocator.unused(right.node());
+                for(int i = level + 1; i < at.landed; ++i) {
+                    allocator.unused(levels.get(i).open.node());
+                    levels.get(i).open = levels.get(i).prev;
+                }
+
+                parent.decrementCount();
+                at.open = left;
+            }
+        }
+    }
+
+    //Fills an empty tree from entries in increasing key order, much faster than inserting them
+    //one at a time and leaving no free space behind. fill is the fraction of max keys each node
+    //gets, kept at min keys or more. If a key isn't greater than the one before it the entries
+    //before it are kept and an IllegalArgumentException is thrown.
+    public void load(final Iterator<? extends Entry<? extends K, ? extends V>> sorted, final double fill) {
+        if(!(fill > 0.0d && fill <= 1.0d)) {
+            throw new IllegalArgumentException("fill has to be greater than 0 and at most 1");
+        }
+
+        withWrite((bytes) -> {
+                final NodeLatches.Held held = latches.forWrite();
+                try {
+                    final Node.Mutable<K,V> rootNode = factory.mutable(bytes, lockRoot(held));
+                    if(!rootNode.leaf() || rootNode.count() != 0) {
+                        throw new IllegalStateException("only an empty tree can be loaded");
+                    }
+
+                    final Loader loader = new Loader(bytes, rootNode, fill);
+                    K outOfOrder = null;
+                    while(sorted.hasNext()) {
+                        final Entry<? extends K, ? extends V> entry = sorted.next();
+                        if(!loader.add(entry.getKey(), entry.getValue())) {
+                            outOfOrder = entry.getKey();
+                            break;
+                        }
+                    }
+
+                    loader.finish();
+                    if(outOfOrder != null) {
+                        throw new IllegalArgumentException("key out of order: " + outOfOrder);
+                    }
+                }
+                finally {
+                    held.releaseAll();
+                }
+            });
+    }
+
+    public void load(final Stream<? extends Entry<? extends K, ? extends V>> sorted, final double fill) {
+        load(sorted.iterator(), fill);
+    }
+
+    //In order walk of a range. The stack is the path from the root to the node holding the
+    //next entry, each node's index is the next entry it has to give. Inner node entries
+    //come after the subtree to their left, so going down leaves the index where it is.
+    private class PathCursor implements Cursor<K,V> {
+        private final K to;
+        private final ImmutableBytes bytes;
+        private final NodeLatches.Held held;
+        private final ArrayDeque<Node.Immutable<K,V>> path = new ArrayDeque<>();
+        private Node.Immutable<K,V> next;
+        private boolean open = true;
+
+        PathCursor(final K from, final K to) {
+            this.to = to;
+            this.bytes = viewBytes.forRead();
+            this.held = latches.forRead();
+            try {
+                Node.Immutable<K,V> node = factory.immutable(bytes, lockRoot(held));
+                held.unlockRoot();
+                while(true) {
+                    path.push(node);
+                    if((from != null && node.find(from)) || node.leaf()) {
+                        break;
+                    }
+
+                    node = down(node);
+                }
+
+                advance();
+            }
+            catch(RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private Node.Immutable<K,V> down(final Node.Immutable<K,V> node) {
+            final int child = node.child();
+            held.lock(child);
+            return factory.immutable(bytes, child);
+        }
+
+        //leaves next on the entry to give, closes when there isn't one
+        private void advance() {
+            while(!path.isEmpty()) {
+                final Node.Immutable<K,V> top = path.peek();
+                if(top.index() < top.count()) {
+                    if(to != null && top.compareKeyAt(to, top.index()) <= 0) {
+                        break;
+                    }
+
+                    next = top;
+                    return;
+                }
+
+                path.pop();
+                held.unlock(top.node());
+            }
+
+            close();
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Entry<K,V> next() {
+            if(next == null) {
+                throw new NoSuchElementException();
+            }
+
+            final Node.Immutable<K,V> node = next;
+            final Entry<K,V> ret = new SimpleImmutableEntry<>(node.key(), node.value());
+            node.incrementIndex();
+            if(!node.leaf()) {
+                Node.Immutable<K,V> child = down(node);
+                path.push(child);
+                while(!child.leaf()) {
+                    child = down(child);
+                    path.push(child);
+                }
+            }
+
+            advance();
+            return ret;
+        }
+
+        public void close() {
+            if(open) {
+                open = false;
+                next = null;
+                path.clear();
+                held.releaseAll();
+                bytes.stop();
+            }
+        }
+    }
+
+    //entries from from up to but not including to, either can be null for no bound
+    public Cursor<K,V> scan(final K from, final K to) {
+        return new PathCursor(from, to);
+    }
+
+    //closing the stream closes the cursor under it
+    public Stream<Entry<K,V>> stream(final K from, final K to) {
+        final Cursor<K,V> cursor = scan(from, to);
+        final int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, characteristics), false)
+            .onClose(cursor::close);
     }
 
     public String toString() {
@@ -335,7 +1228,7 @@ public class BTree<K,V> {
     
     private void _breadthFirst(final ImmutableBytes bytes, final BreadthFirst<K,V> handler) {
         final Queue<BreadthEntry> queue = new LinkedList<>();
-        queue.offer(new BreadthEntry(immutableRoot(), null, null));
+        queue.offer(new BreadthEntry(factory.immutable(bytes, root), null, null));
         while(!queue.isEmpty()) {
             final BreadthEntry entry = queue.poll();
             final Node.Immutable<K,V> node = entry.node;
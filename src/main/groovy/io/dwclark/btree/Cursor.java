@@ -0,0 +1,11 @@
+package io.dwclark.btree;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+//Entries of a tree in key order. A cursor holds a read view of the tree's bytes until it
+//runs out or is closed, so close cursors that aren't read to the end, and don't write
+//to the tree from the thread holding one.
+public interface Cursor<K,V> extends Iterator<Entry<K,V>>, AutoCloseable {
+    void close();
+}
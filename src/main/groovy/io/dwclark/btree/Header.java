@@ -0,0 +1,116 @@
+package io.dwclark.btree;
+
+import io.dwclark.btree.io.ImmutableBytes;
+import io.dwclark.btree.io.MutableBytes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+//Block 0 of a tree that can be opened again. It holds what it takes to read the tree back:
+//node size, key and value records, layout, search, root and the allocator's state.
+//magic(4) version(2) key record(1) value record(1) buffer size(4) layout(1) search(1)
+//unused(2) root(4) current(8) unused count(4) first unused list block(4)
+//The unused blocks are listed in a chain of unused blocks, each one holding the next block
+//in the chain and as many ids as fit, so writing a header never allocates.
+final class Header {
+
+    static final int MAGIC = 0x4254_5245;
+    static final short VERSION = 1;
+    static final int SIZE = 36;
+    private static final int NONE = -1;
+
+    //the records a header can name, a record's id is its index
+    private static final List<Record<?>> RECORDS = Arrays.asList(LongRecord.instance(), IntegerRecord.instance(),
+                                                                  UUIDRecord.instance(), ShortRecord.instance());
+
+    final Record<?> keyRecord;
+    final Record<?> valueRecord;
+    final int bufferSize;
+    final Layout layout;
+    final Search search;
+    final int root;
+    final long current;
+    final NavigableSet<Long> unused;
+
+    Header(final Record<?> keyRecord, final Record<?> valueRecord, final int bufferSize, final Layout layout,
+           final Search search, final int root, final long current, final NavigableSet<Long> unused) {
+        this.keyRecord = keyRecord;
+        this.valueRecord = valueRecord;
+        this.bufferSize = bufferSize;
+        this.layout = layout;
+        this.search = search;
+        this.root = root;
+        this.current = current;
+        this.unused = unused;
+    }
+
+    static int recordId(final Record<?> record) {
+        final int ret = RECORDS.indexOf(record);
+        if(ret == -1) {
+            throw new IllegalArgumentException("a header can't name " + record.getClass().getSimpleName());
+        }
+
+        return ret;
+    }
+
+    void write(final MutableBytes bytes) {
+        final long[] ids = new long[unused.size()];
+        int at = 0;
+        for(Long id : unused) {
+            ids[at++] = id.longValue();
+        }
+
+        bytes.writeInt(0, MAGIC).writeShort(4, VERSION);
+        bytes.write(6, (byte) recordId(keyRecord)).write(7, (byte) recordId(valueRecord));
+        bytes.writeInt(8, bufferSize);
+        bytes.write(12, (byte) layout.ordinal()).write(13, (byte) search.ordinal());
+        bytes.writeInt(16, root).writeLong(20, current);
+        bytes.writeInt(28, ids.length).writeInt(32, ids.length == 0 ? NONE : (int) ids[0]);
+
+        //the first ids double as the blocks of the list
+        final int perBlock = (bufferSize - 4) / 4;
+        final int blocks = (ids.length + perBlock - 1) / perBlock;
+        for(int i = 0; i < blocks; ++i) {
+            final long base = base((int) ids[i], bufferSize);
+            bytes.writeInt(base, (i + 1 < blocks) ? (int) ids[i + 1] : NONE);
+            final int end = Math.min(ids.length, (i + 1) * perBlock);
+            for(int j = i * perBlock; j < end; ++j) {
+                bytes.writeInt(base + 4 + (4 * (j - (i * perBlock))), (int) ids[j]);
+            }
+        }
+    }
+
+    static Header read(final ImmutableBytes bytes) {
+        if(bytes.readInt(0) != MAGIC) {
+            throw new IllegalStateException("no tree header found");
+        }
+
+        if(bytes.readShort(4) != VERSION) {
+            throw new IllegalStateException("unknown tree header version " + bytes.readShort(4));
+        }
+
+        final int bufferSize = bytes.readInt(8);
+        final int count = bytes.readInt(28);
+        final NavigableSet<Long> unused = new TreeSet<>();
+        final int perBlock = (bufferSize - 4) / 4;
+        int read = 0;
+        for(int block = bytes.readInt(32); read < count; block = bytes.readInt(base(block, bufferSize))) {
+            final long base = base(block, bufferSize);
+            final int end = Math.min(count - read, perBlock);
+            for(int j = 0; j < end; ++j) {
+                unused.add(0xFFFF_FFFFL & bytes.readInt(base + 4 + (4 * j)));
+            }
+
+            read += end;
+        }
+
+        return new Header(RECORDS.get(bytes.read(6)), RECORDS.get(bytes.read(7)), bufferSize,
+                          Layout.values()[bytes.read(12)], Search.values()[bytes.read(13)],
+                          bytes.readInt(16), bytes.readLong(20), unused);
+    }
+
+    private static long base(final int block, final int bufferSize) {
+        return (0xFFFF_FFFFL & block) * bufferSize;
+    }
+}
@@ -3,7 +3,7 @@ package io.dwclark.btree;
 import io.dwclark.btree.io.ImmutableBytes;
 import io.dwclark.btree.io.MutableBytes;
 
-public class IntegerRecord implements Record<Integer> {
+public class IntegerRecord implements NumericRecord<Integer> {
 
     private static IntegerRecord _instance = new IntegerRecord();
     
@@ -30,4 +30,12 @@ public class IntegerRecord implements Record<Integer> {
     public int compareInPlace(final ImmutableBytes bytes, final long pos1, final long pos2) {
         return Integer.compare(bytes.readInt(pos1), bytes.readInt(pos2));
     }
+
+    public long longAt(final ImmutableBytes bytes, final long pos) {
+        return bytes.readInt(pos);
+    }
+
+    public long longValue(final Integer val) {
+        return val.intValue();
+    }
 }
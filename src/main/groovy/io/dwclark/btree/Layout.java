@@ -0,0 +1,27 @@
+package io.dwclark.btree;
+
+//Where entries live inside a node. Both layouts start with the count/leaf header and
+//take the same space, so a factory's buffer size and min degree don't depend on layout.
+//INTERLEAVED stores [child|key|value] entries followed by the last child.
+//COLUMNAR stores all keys, then all children, then all values, so a key search
+//only reads the key array.
+public enum Layout {
+
+    INTERLEAVED {
+        Node.Shape shape(final Record<?> keyRecord, final Record<?> valueRecord, final int maxKeys) {
+            return Node.Shape.interleaved(keyRecord, valueRecord);
+        }
+    },
+
+    COLUMNAR {
+        Node.Shape shape(final Record<?> keyRecord, final Record<?> valueRecord, final int maxKeys) {
+            final int keyOffset = Node.COUNT_SIZE;
+            final int childOffset = keyOffset + (maxKeys * keyRecord.size());
+            final int valueOffset = childOffset + ((maxKeys + 1) * Node.CHILD_SIZE);
+            return new Node.Shape(childOffset, Node.CHILD_SIZE, keyOffset, keyRecord.size(),
+                                  valueOffset, valueRecord.size(), false);
+        }
+    };
+
+    abstract Node.Shape shape(Record<?> keyRecord, Record<?> valueRecord, int maxKeys);
+}
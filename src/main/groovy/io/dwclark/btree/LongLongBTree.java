@@ -0,0 +1,84 @@
+package io.dwclark.btree;
+
+import io.dwclark.btree.io.ViewBytes;
+
+//A BTree of long keys and values with primitive get/put/remove. Keys are compared
+//in place with readLong, nothing is boxed on the way down or when entries move.
+public class LongLongBTree extends BTree<Long,Long> {
+
+    private final ThreadLocal<LongProbe> gets = ThreadLocal.withInitial(LongProbe::new);
+
+    public LongLongBTree(final ViewBytes viewBytes, final BlockAllocator allocator,
+                         final LongLongFactory factory, final int root, final boolean threadSafe) {
+        super(viewBytes, allocator, factory, root, threadSafe);
+    }
+
+    public LongLongBTree(final ViewBytes viewBytes, final BlockAllocator allocator,
+                         final LongLongFactory factory, final int root) {
+        super(viewBytes, allocator, factory, root);
+    }
+
+    public LongLongBTree(final ViewBytes viewBytes, final LongLongFactory factory, final boolean threadSafe) {
+        super(viewBytes, factory, threadSafe);
+    }
+
+    public LongLongBTree(final ViewBytes viewBytes, final LongLongFactory factory) {
+        super(viewBytes, factory);
+    }
+
+    private static class LongProbe extends Probe<Long,Long> {
+        long key;
+        long value;
+
+        LongProbe() {}
+
+        LongProbe(final long key, final long value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        protected boolean find(final Node.Immutable<Long,Long> node) {
+            return node.findLong(key);
+        }
+
+        protected Object found(final Node.Immutable<Long,Long> node) {
+            value = node.bytes().readLong(node.valuePos());
+            return this;
+        }
+
+        protected void place(final Node.Mutable<Long,Long> node) {
+            node.bytes().writeLong(node.keyPos(), key);
+            node.bytes().writeLong(node.valuePos(), value);
+        }
+
+        protected void update(final Node.Mutable<Long,Long> node) {
+            node.bytes().writeLong(node.valuePos(), value);
+        }
+
+        protected Probe<Long,Long> at(final Node.Immutable<Long,Long> node) {
+            return new LongProbe(node.bytes().readLong(node.keyPos()),
+                                 node.bytes().readLong(node.valuePos()));
+        }
+    }
+
+    //missing if the key isn't in the tree
+    public long get(final long key, final long missing) {
+        final LongProbe probe = gets.get();
+        probe.key = key;
+        return (search(probe) != null) ? probe.value : missing;
+    }
+
+    public boolean contains(final long key) {
+        final LongProbe probe = gets.get();
+        probe.key = key;
+        return search(probe) != null;
+    }
+
+    public void put(final long key, final long value) {
+        insert(new LongProbe(key, value));
+    }
+
+    public boolean remove(final long key) {
+        return remove(new LongProbe(key, 0L));
+    }
+}
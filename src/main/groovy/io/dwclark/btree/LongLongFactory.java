@@ -7,14 +7,31 @@ public class LongLongFactory implements NodeFactory<Long,Long> {
 
     private final int bufferSize;
     private final int minDegree;
+    private final Search search;
+    private final Layout layout;
+    private final Node.Shape shape;
     
-    public LongLongFactory(final int bufferSize) {
+    public LongLongFactory(final int bufferSize, final Search search, final Layout layout) {
         this.bufferSize = bufferSize;
+        this.search = search;
+        this.layout = layout;
         this.minDegree = findMinDegree();
+        this.shape = layout.shape(keyRecord(), valueRecord(), getMaxKeys());
+    }
+
+    public LongLongFactory(final int bufferSize, final Search search) {
+        this(bufferSize, search, Layout.INTERLEAVED);
+    }
+
+    public LongLongFactory(final int bufferSize) {
+        this(bufferSize, Search.LINEAR);
     }
     
     public final LongRecord keyRecord() { return LongRecord.instance(); }
     public final LongRecord valueRecord() { return LongRecord.instance(); }
     public final int getBufferSize() { return bufferSize; }
     public final int getMinDegree() { return minDegree; }
+    public final Search search() { return search; }
+    public final Layout layout() { return layout; }
+    public final Node.Shape shape() { return shape; }
 }
@@ -3,7 +3,7 @@ package io.dwclark.btree;
 import io.dwclark.btree.io.ImmutableBytes;
 import io.dwclark.btree.io.MutableBytes;
 
-public class LongRecord implements Record<Long> {
+public class LongRecord implements NumericRecord<Long> {
 
     private static LongRecord _instance = new LongRecord();
     
@@ -30,4 +30,12 @@ public class LongRecord implements Record<Long> {
     public int compareInPlace(final ImmutableBytes bytes, final long pos1, final long pos2) {
         return Long.compare(bytes.readLong(pos1), bytes.readLong(pos2));
     }
+
+    public long longAt(final ImmutableBytes bytes, final long pos) {
+        return bytes.readLong(pos);
+    }
+
+    public long longValue(final Long val) {
+        return val.longValue();
+    }
 }
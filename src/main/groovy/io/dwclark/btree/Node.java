@@ -16,6 +16,42 @@ public class Node {
         return CHILD_SIZE + keyRecord.size() + valueRecord.size();
     }
 
+    //reads the leaf flag without making a node
+    public static boolean leaf(final ImmutableBytes bytes, final int node, final int bufferSize) {
+        final long base = (0xFFFF_FFFFL & node) * bufferSize;
+        return 0 != (bytes.readShort(base) & 0x8000);
+    }
+
+    //Where children, keys and values are, as offsets from the start of a node and
+    //strides between one index and the next. See Layout
+    public static final class Shape {
+        final int childOffset;
+        final int childStride;
+        final int keyOffset;
+        final int keyStride;
+        final int valueOffset;
+        final int valueStride;
+        //entries and their children are one run of bytes, so moving them is one copy
+        final boolean interleaved;
+
+        Shape(final int childOffset, final int childStride, final int keyOffset, final int keyStride,
+              final int valueOffset, final int valueStride, final boolean interleaved) {
+            this.childOffset = childOffset;
+            this.childStride = childStride;
+            this.keyOffset = keyOffset;
+            this.keyStride = keyStride;
+            this.valueOffset = valueOffset;
+            this.valueStride = valueStride;
+            this.interleaved = interleaved;
+        }
+
+        static Shape interleaved(final Record<?> keyRecord, final Record<?> valueRecord) {
+            final int entrySize = CHILD_SIZE + keyRecord.size() + valueRecord.size();
+            return new Shape(COUNT_SIZE, entrySize, COUNT_SIZE + CHILD_SIZE, entrySize,
+                             COUNT_SIZE + CHILD_SIZE + keyRecord.size(), entrySize, true);
+        }
+    }
+
     public static class Immutable<K,V> {
 
         public final int keySize() {
@@ -32,12 +68,13 @@ public class Node {
 
         public final Record<K> keyRecord;
         public final Record<V> valueRecord;
-        final protected ImmutableBytes bytes;
-        final protected long base;
+        public final Search search;
+        public final Shape shape;
+        protected ImmutableBytes bytes;
+        protected long base;
         final protected int bufferSize;
-        final protected int node;
+        protected int node;
 
-        protected long pos;
         protected int index;
         protected int count;
         protected boolean leaf;
@@ -46,28 +83,51 @@ public class Node {
             this.bytes = rhs.bytes;
             this.keyRecord = rhs.keyRecord;
             this.valueRecord = rhs.valueRecord;
+            this.search = rhs.search;
+            this.shape = rhs.shape;
             this.base = rhs.base;
             this.bufferSize = rhs.bufferSize;
             this.node = rhs.node;
-            this.pos = rhs.pos;
             this.index = rhs.index;
             this.count = rhs.count;
             this.leaf = rhs.leaf;
         }
         
         public Immutable(final ImmutableBytes bytes, final Record<K> keyRecord, final Record<V> valueRecord,
-                         final int node, final int bufferSize) {
+                         final Search search, final Shape shape, final int node, final int bufferSize) {
             this.bytes = bytes;
             this.keyRecord = keyRecord;
             this.valueRecord = valueRecord;
-            this.node = node;
+            this.search = search;
+            this.shape = shape;
             this.bufferSize = bufferSize;
-            
+            load(bytes, node);
+        }
+
+        public Immutable(final ImmutableBytes bytes, final Record<K> keyRecord, final Record<V> valueRecord,
+                         final Search search, final int node, final int bufferSize) {
+            this(bytes, keyRecord, valueRecord, search, Shape.interleaved(keyRecord, valueRecord), node, bufferSize);
+        }
+
+        public Immutable(final ImmutableBytes bytes, final Record<K> keyRecord, final Record<V> valueRecord,
+                         final int node, final int bufferSize) {
+            this(bytes, keyRecord, valueRecord, Search.LINEAR, node, bufferSize);
+        }
+
+        private void load(final ImmutableBytes bytes, final int node) {
+            this.bytes = bytes;
+            this.node = node;
             this.base = ((long) (0xFFFF_FFFFL & node)) * ((long) bufferSize);
-            this.count = bytes.readShort(base) & 0x7FFF;
-            this.leaf = 0 != (bytes.readShort(base) & 0x8000);
+            final short header = bytes.readShort(base);
+            this.count = header & 0x7FFF;
+            this.leaf = 0 != (header & 0x8000);
             this.index = 0;
-            this.pos = base + COUNT_SIZE;
+        }
+
+        //Moves this node to another one, so going down a tree doesn't need a new node per level
+        public Immutable<K,V> point(final ImmutableBytes bytes, final int node) {
+            load(bytes, node);
+            return this;
         }
 
         public Immutable copy() {
@@ -79,7 +139,7 @@ public class Node {
         }
 
         public Immutable<K,V> childNode() {
-            return new Immutable<>(bytes, keyRecord, valueRecord, child(), bufferSize);
+            return new Immutable<>(bytes, keyRecord, valueRecord, search, shape, child(), bufferSize);
         }
 
         public Immutable<K,V> rightChildNode() {
@@ -87,29 +147,26 @@ public class Node {
                 return null;
             }
             else {
-                return new Immutable<>(bytes, keyRecord, valueRecord, rightChild(), bufferSize);
+                return new Immutable<>(bytes, keyRecord, valueRecord, search, shape, rightChild(), bufferSize);
             }
         }
 
         public Immutable<K,V> leftChildNode() {
-            return new Immutable<>(bytes, keyRecord, valueRecord, leftChild(), bufferSize);
+            return new Immutable<>(bytes, keyRecord, valueRecord, search, shape, leftChild(), bufferSize);
         }
 
         public Immutable<K,V> index(final int index) {
             this.index = index;
-            this.pos = base + COUNT_SIZE + (index * entrySize());
             return this;
         }
 
         public Immutable<K,V> incrementIndex() {
             index += 1;
-            pos += entrySize();
             return this;
         }
 
         public Immutable<K,V> decrementIndex() {
             index -= 1;
-            pos -= entrySize();
             return this;
         }
 
@@ -125,13 +182,20 @@ public class Node {
             return index;
         }
 
+        public long childPos() {
+            return childPos(index);
+        }
+
+        public long childPos(final int idx) {
+            return base + shape.childOffset + (idx * shape.childStride);
+        }
+
         public int child() {
-            return bytes.readInt(pos);
+            return bytes.readInt(childPos());
         }
 
         public int childAtIndex(final int idx) {
-            final long pos = COUNT_SIZE + (idx * entrySize());
-            return bytes.readInt(pos);
+            return bytes.readInt(childPos(idx));
         }
 
         public int leftChild() {
@@ -139,11 +203,11 @@ public class Node {
         }
 
         public int rightChild() {
-            return bytes.readInt(pos + entrySize());
+            return bytes.readInt(childPos(index + 1));
         }
 
         public long keyPos(){
-            return pos + CHILD_SIZE;
+            return keyPos(index);
         }
 
         public K key() {
@@ -151,7 +215,7 @@ public class Node {
         }
 
         public long keyPos(final int idx) {
-            return base + COUNT_SIZE + CHILD_SIZE + (idx * entrySize());
+            return base + shape.keyOffset + (idx * shape.keyStride);
         }
         
         public K keyAtIndex(final int idx) {
@@ -159,7 +223,7 @@ public class Node {
         }
 
         public long valuePos() {
-            return keyPos() + keyRecord.size();
+            return valuePos(index);
         }
 
         public V value() {
@@ -167,7 +231,7 @@ public class Node {
         }
 
         public long valuePos(final int idx) {
-            return base + COUNT_SIZE + CHILD_SIZE + keySize() + (idx * entrySize());
+            return base + shape.valueOffset + (idx * shape.valueStride);
         }
 
         public V valueAtIndex(final int idx) {
@@ -178,21 +242,20 @@ public class Node {
             return keyRecord.compare(bytes, keyPos(idx), k);
         }
 
+        //find for trees keyed by longs, compares without going through the key record
+        public boolean findLong(final long k) {
+            index(search.findLong(this, k));
+            return (index < count) && (bytes.readLong(keyPos()) == k);
+        }
+
         public boolean find(final K k) {
-            for(; index < count && keyRecord.compare(bytes, keyPos(), k) > 0; ++index) {
-                pos += entrySize();
-            }
-            
+            index(search.find(this, k));
             return (index < count) && (keyRecord.compare(bytes, keyPos(), k) == 0);
         }
 
         private boolean _isSorted() {
             for(index(0); index < (count - 1); incrementIndex()) {
-                final long firstPos = pos() + CHILD_SIZE;
-                final long secondPos = firstPos + entrySize();
-                if(keyRecord.compareInPlace(bytes, firstPos, secondPos) > 0) {
-                    final K first = key();
-                    final K second = incrementIndex().key();
+                if(keyRecord.compareInPlace(bytes, keyPos(index), keyPos(index + 1)) > 0) {
                     return false;
                 }
             }
@@ -230,10 +293,6 @@ public class Node {
             return copy()._values();
         }
 
-        public long pos() {
-            return pos;
-        }
-
         public ImmutableBytes bytes() {
             return bytes;
         }
@@ -273,24 +332,39 @@ public class Node {
         }
         
         public Mutable(final MutableBytes bytes, final Record<K> keyRecord, final Record<V> valueRecord,
-                       final int node, final int bufferSize) {
-            super(bytes, keyRecord, valueRecord, node, bufferSize);
+                       final Search search, final Shape shape, final int node, final int bufferSize) {
+            super(bytes, keyRecord, valueRecord, search, shape, node, bufferSize);
             this.bytes = bytes;
         }
 
+        public Mutable(final MutableBytes bytes, final Record<K> keyRecord, final Record<V> valueRecord,
+                       final Search search, final int node, final int bufferSize) {
+            this(bytes, keyRecord, valueRecord, search, Shape.interleaved(keyRecord, valueRecord), node, bufferSize);
+        }
+
+        public Mutable(final MutableBytes bytes, final Record<K> keyRecord, final Record<V> valueRecord,
+                       final int node, final int bufferSize) {
+            this(bytes, keyRecord, valueRecord, Search.LINEAR, node, bufferSize);
+        }
+
         @Override
         public Mutable copy() {
             return new Mutable(this);
         }
 
+        @Override
+        public Mutable<K,V> point(final ImmutableBytes bytes, final int node) {
+            throw new UnsupportedOperationException("only immutable nodes can be moved");
+        }
+
         @Override
         public Mutable<K,V> childNode() {
-            return new Mutable<>(bytes, keyRecord, valueRecord, child(), bufferSize);
+            return new Mutable<>(bytes, keyRecord, valueRecord, search, shape, child(), bufferSize);
         }
 
         @Override
         public Mutable<K,V> leftChildNode(){
-            return new Mutable<>(bytes, keyRecord, valueRecord, leftChild(), bufferSize);
+            return new Mutable<>(bytes, keyRecord, valueRecord, search, shape, leftChild(), bufferSize);
         }
 
         @Override
@@ -303,7 +377,7 @@ public class Node {
                 return null;
             }
             else {
-                return new Mutable<>(bytes, keyRecord, valueRecord, bytes.readInt(pos - entrySize()), bufferSize);
+                return new Mutable<>(bytes, keyRecord, valueRecord, search, shape, childAtIndex(index - 1), bufferSize);
             }
         }
 
@@ -313,7 +387,7 @@ public class Node {
                 return null;
             }
             else {
-                return new Mutable<>(bytes, keyRecord, valueRecord, rightChild(), bufferSize);
+                return new Mutable<>(bytes, keyRecord, valueRecord, search, shape, rightChild(), bufferSize);
             }
         }
 
@@ -346,7 +420,7 @@ public class Node {
         }
 
         public Mutable<K,V> child(final int val) {
-            bytes.writeInt(pos, val);
+            bytes.writeInt(childPos(), val);
             return this;
         }
 
@@ -355,7 +429,7 @@ public class Node {
         }
         
         public Mutable<K,V> rightChild(final int val) {
-            bytes.writeInt(pos + entrySize(), val);
+            bytes.writeInt(childPos(index + 1), val);
             return this;
         }
 
@@ -371,17 +445,27 @@ public class Node {
             return rightChild(node.node);
         }
 
-        private int shiftLength() {
-            return (entrySize() * (count - index)) + CHILD_SIZE;
-        }
-
         public Mutable<K,V> rightShift() {
-            bytes.copy(pos + entrySize(), bytes, pos, shiftLength());
-            return this;
+            return move(index + 1, this, index, count - index);
         }
 
         public Mutable<K,V> leftShift() {
-            bytes.copy(pos - entrySize(), bytes, pos, shiftLength());
+            return move(index - 1, this, index, count - index);
+        }
+
+        //copies entries starting at fromIdx in from, along with the children around them,
+        //to this node starting at idx. Both nodes have to share a shape
+        public Mutable<K,V> move(final int idx, final Immutable<K,V> from, final int fromIdx, final int entries) {
+            if(shape.interleaved) {
+                bytes.copy(childPos(idx), from.bytes, from.childPos(fromIdx),
+                           (entries * shape.childStride) + CHILD_SIZE);
+            }
+            else {
+                bytes.copy(keyPos(idx), from.bytes, from.keyPos(fromIdx), entries * shape.keyStride);
+                bytes.copy(valuePos(idx), from.bytes, from.valuePos(fromIdx), entries * shape.valueStride);
+                bytes.copy(childPos(idx), from.bytes, from.childPos(fromIdx), (entries + 1) * shape.childStride);
+            }
+
             return this;
         }
 
@@ -394,5 +478,18 @@ public class Node {
             valueRecord.place(bytes, valuePos(), v);
             return this;
         }
+
+        //copies only the key at from's index to this node's index
+        public Mutable<K,V> copyKey(final Immutable<K,V> from) {
+            bytes.copy(keyPos(), from.bytes, from.keyPos(), keySize());
+            return this;
+        }
+
+        //copies the key and value at from's index to this node's index
+        public Mutable<K,V> entry(final Immutable<K,V> from) {
+            bytes.copy(keyPos(), from.bytes, from.keyPos(), keySize());
+            bytes.copy(valuePos(), from.bytes, from.valuePos(), valueSize());
+            return this;
+        }
     }
 }
@@ -9,12 +9,26 @@ interface NodeFactory<K,V> {
     int getBufferSize();
     int getMinDegree();
 
+    default Search search() { return Search.LINEAR; }
+    default Layout layout() { return Layout.INTERLEAVED; }
+
+    //factories should keep this rather than make one per node
+    default Node.Shape shape() { return layout().shape(keyRecord(), valueRecord(), getMaxKeys()); }
+
     default Node.Mutable<K,V> mutable(final MutableBytes bytes, final int node) {
-        return new Node.Mutable(bytes, keyRecord(), valueRecord(), node, getBufferSize());
+        return new Node.Mutable(bytes, keyRecord(), valueRecord(), search(), shape(), node, getBufferSize());
     }
     
     default Node.Immutable<K,V> immutable(final ImmutableBytes bytes, final int node) {
-        return new Node.Immutable(bytes, keyRecord(), valueRecord(), node, getBufferSize());
+        return new Node.Immutable(bytes, keyRecord(), valueRecord(), search(), shape(), node, getBufferSize());
+    }
+
+    public static Search checkSearch(final Search search, final Record<?> keyRecord) {
+        if(search == Search.INTERPOLATION && !(keyRecord instanceof NumericRecord)) {
+            throw new IllegalArgumentException("interpolation search needs numeric keys");
+        }
+
+        return search;
     }
 
     public static <K,V> int bufferSizeForMinDegree(final int t, final Record<K> keyRecord, final Record<V> valueRecord) {
@@ -0,0 +1,166 @@
+package io.dwclark.btree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+//Latches for crabbing down a btree. The root latch guards which node is the root,
+//node latches are made on demand and live as long as the tree does, one per node
+//that has been used (a few dozen bytes against a node's buffer). Every node needs its
+//own latch: writers hold several nodes at once and rely on taking them top down, two
+//unrelated nodes sharing a latch could deadlock. Node ids are ints, so a thread safe
+//tree can latch at most MAX_NODES nodes and its allocator must not hand out more.
+//Latches double as version words: every write latch release bumps the version,
+//so a reader can go down without latching and validate what it read afterwards.
+class NodeLatches {
+
+    static final long MAX_NODES = 1L << 31;
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final boolean threadSafe;
+    private final StampedLock rootLatch = new StampedLock();
+    //indexed by node in fixed size chunks, nodes are handed out densely. Only the table of
+    //chunks is copied when it has to grow, the latches themselves never move
+    private volatile AtomicReferenceArray<AtomicReferenceArray<StampedLock>> chunks = new AtomicReferenceArray<>(1);
+    private final Object growLock = new Object();
+    private final Held none = new Held(false);
+
+    NodeLatches(final boolean threadSafe) {
+        this.threadSafe = threadSafe;
+    }
+
+    //arrays rather than a map so finding a latch doesn't box the node
+    private StampedLock latch(final int node) {
+        final AtomicReferenceArray<AtomicReferenceArray<StampedLock>> now = chunks;
+        final int index = node >>> CHUNK_SHIFT;
+        final AtomicReferenceArray<StampedLock> chunk = (index < now.length()) ? now.get(index) : null;
+        final StampedLock ret = (chunk != null) ? chunk.get(node & CHUNK_MASK) : null;
+        return (ret != null) ? ret : newLatch(node);
+    }
+
+    private StampedLock newLatch(final int node) {
+        if(node < 0) {
+            throw new IllegalArgumentException("node " + (0xFFFF_FFFFL & node) +
+                                               " is past the " + MAX_NODES + " nodes a thread safe tree can latch");
+        }
+
+        synchronized(growLock) {
+            AtomicReferenceArray<AtomicReferenceArray<StampedLock>> now = chunks;
+            final int index = node >>> CHUNK_SHIFT;
+            if(index >= now.length()) {
+                final AtomicReferenceArray<AtomicReferenceArray<StampedLock>> next =
+                    new AtomicReferenceArray<>(Math.max(index + 1, 2 * now.length()));
+                for(int i = 0; i < now.length(); ++i) {
+                    next.set(i, now.get(i));
+                }
+
+                chunks = now = next;
+            }
+
+            AtomicReferenceArray<StampedLock> chunk = now.get(index);
+            if(chunk == null) {
+                chunk = new AtomicReferenceArray<>(CHUNK_MASK + 1);
+                now.set(index, chunk);
+            }
+
+            final StampedLock existing = chunk.get(node & CHUNK_MASK);
+            if(existing != null) {
+                return existing;
+            }
+
+            final StampedLock ret = new StampedLock();
+            chunk.set(node & CHUNK_MASK, ret);
+            return ret;
+        }
+    }
+
+    public boolean isThreadSafe() {
+        return threadSafe;
+    }
+
+    //zero if the root is being changed
+    public long rootVersion() {
+        return rootLatch.tryOptimisticRead();
+    }
+
+    public boolean validateRoot(final long version) {
+        return rootLatch.validate(version);
+    }
+
+    //zero if the node is write latched
+    public long version(final int node) {
+        return latch(node).tryOptimisticRead();
+    }
+
+    public boolean validate(final int node, final long version) {
+        return latch(node).validate(version);
+    }
+
+    public Held forRead() {
+        return threadSafe ? new Held(false) : none;
+    }
+
+    public Held forWrite() {
+        return threadSafe ? new Held(true) : none;
+    }
+
+    //The latches one operation holds. Latches are taken top down, so holding
+    //a node while waiting on one of its children or siblings can't deadlock.
+    class Held {
+        private final boolean exclusive;
+        private final Map<Integer,Lock> held;
+        private Lock root;
+
+        private Held(final boolean exclusive) {
+            this.exclusive = exclusive;
+            this.held = threadSafe ? new LinkedHashMap<>() : null;
+        }
+
+        public void lockRoot() {
+            if(threadSafe) {
+                root = exclusive ? rootLatch.asWriteLock() : rootLatch.asReadLock();
+                root.lock();
+            }
+        }
+
+        public boolean holdsRoot() {
+            return !threadSafe || root != null;
+        }
+
+        public void unlockRoot() {
+            if(root != null) {
+                root.unlock();
+                root = null;
+            }
+        }
+
+        //no op if the node is already held, latches are not reentrant
+        public void lock(final int node) {
+            if(threadSafe && !held.containsKey(node)) {
+                final Lock lock = exclusive ? latch(node).asWriteLock() : latch(node).asReadLock();
+                lock.lock();
+                held.put(node, lock);
+            }
+        }
+
+        public void unlock(final int node) {
+            if(threadSafe) {
+                final Lock lock = held.remove(node);
+                if(lock != null) {
+                    lock.unlock();
+                }
+            }
+        }
+
+        public void releaseAll() {
+            if(threadSafe) {
+                unlockRoot();
+                held.values().forEach(Lock::unlock);
+                held.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package io.dwclark.btree;
+
+import io.dwclark.btree.io.ImmutableBytes;
+
+//Records whose values are whole numbers, ordered the same way as their long value.
+//Interpolation search needs this to guess where a key sits between two others.
+interface NumericRecord<T> extends Record<T> {
+    long longAt(ImmutableBytes bytes, long pos);
+    long longValue(T val);
+}
@@ -0,0 +1,199 @@
+package io.dwclark.btree;
+
+import io.dwclark.btree.io.ImmutableBytes;
+
+//How a node finds a key. Each one returns the first index at or after the node's
+//current index whose key is not less than the key searched for.
+//LINEAR is cheapest for small nodes, BINARY does log2(count) comparisons, and
+//INTERPOLATION guesses from the key values, which needs a NumericRecord and keys that
+//are spread fairly evenly. It falls back to bisecting after a few guesses.
+//COUNT bisects down to a block of keys and then counts the keys less than the one
+//searched for, without branching on what it reads. Best with columnar nodes.
+public enum Search {
+
+    LINEAR {
+        <K> int find(final Node.Immutable<K,?> node, final K k) {
+            final Record<K> record = node.keyRecord;
+            final ImmutableBytes bytes = node.bytes();
+            int idx = node.index();
+            for(; idx < node.count() && record.compare(bytes, node.keyPos(idx), k) > 0; ++idx) {}
+            return idx;
+        }
+
+        int findLong(final Node.Immutable<?,?> node, final long k) {
+            final ImmutableBytes bytes = node.bytes();
+            int idx = node.index();
+            for(; idx < node.count() && k > bytes.readLong(node.keyPos(idx)); ++idx) {}
+            return idx;
+        }
+    },
+
+    BINARY {
+        <K> int find(final Node.Immutable<K,?> node, final K k) {
+            final Record<K> record = node.keyRecord;
+            final ImmutableBytes bytes = node.bytes();
+            int lo = node.index();
+            int hi = node.count();
+            while(lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if(record.compare(bytes, node.keyPos(mid), k) > 0) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+
+            return lo;
+        }
+
+        int findLong(final Node.Immutable<?,?> node, final long k) {
+            return bisect(node.bytes(), node, node.index(), node.count(), k);
+        }
+    },
+
+    INTERPOLATION {
+        @SuppressWarnings("unchecked")
+        <K> int find(final Node.Immutable<K,?> node, final K k) {
+            final NumericRecord<K> record = (NumericRecord<K>) node.keyRecord;
+            final ImmutableBytes bytes = node.bytes();
+            final long key = record.longValue(k);
+            int lo = node.index();
+            int hi = node.count();
+
+            for(int guesses = 0; lo < hi; ++guesses) {
+                final long first = record.longAt(bytes, node.keyPos(lo));
+                if(key <= first) {
+                    return lo;
+                }
+
+                final long last = record.longAt(bytes, node.keyPos(hi - 1));
+                if(key > last) {
+                    return hi;
+                }
+
+                //answer is in (lo, hi - 1]
+                final int mid = (guesses < MAX_GUESSES) ? guess(key, first, last, lo, hi - 1) : ((lo + hi) >>> 1);
+                if(record.longAt(bytes, node.keyPos(mid)) < key) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                    lo += 1;
+                }
+            }
+
+            return lo;
+        }
+
+        int findLong(final Node.Immutable<?,?> node, final long key) {
+            final ImmutableBytes bytes = node.bytes();
+            int lo = node.index();
+            int hi = node.count();
+
+            for(int guesses = 0; lo < hi; ++guesses) {
+                final long first = bytes.readLong(node.keyPos(lo));
+                if(key <= first) {
+                    return lo;
+                }
+
+                final long last = bytes.readLong(node.keyPos(hi - 1));
+                if(key > last) {
+                    return hi;
+                }
+
+                final int mid = (guesses < MAX_GUESSES) ? guess(key, first, last, lo, hi - 1) : ((lo + hi) >>> 1);
+                if(bytes.readLong(node.keyPos(mid)) < key) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                    lo += 1;
+                }
+            }
+
+            return lo;
+        }
+    },
+
+    COUNT {
+        <K> int find(final Node.Immutable<K,?> node, final K k) {
+            final Record<K> record = node.keyRecord;
+            final ImmutableBytes bytes = node.bytes();
+            int lo = node.index();
+            int hi = node.count();
+            while(hi - lo > BLOCK) {
+                final int mid = (lo + hi) >>> 1;
+                if(record.compare(bytes, node.keyPos(mid), k) > 0) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+
+            //keys are sorted, so the ones less than k are all before the answer
+            int less = 0;
+            for(int idx = lo; idx < hi; ++idx) {
+                less += (record.compare(bytes, node.keyPos(idx), k) > 0) ? 1 : 0;
+            }
+
+            return lo + less;
+        }
+
+        int findLong(final Node.Immutable<?,?> node, final long k) {
+            final ImmutableBytes bytes = node.bytes();
+            int lo = node.index();
+            int hi = node.count();
+            while(hi - lo > BLOCK) {
+                final int mid = (lo + hi) >>> 1;
+                if(bytes.readLong(node.keyPos(mid)) < k) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+
+            int less = 0;
+            for(int idx = lo; idx < hi; ++idx) {
+                less += (bytes.readLong(node.keyPos(idx)) < k) ? 1 : 0;
+            }
+
+            return lo + less;
+        }
+    };
+
+    //how many keys COUNT compares at the end of its search
+    private static final int BLOCK = 16;
+
+    //after this many guesses the keys aren't spread evenly enough, bisect what is left
+    private static final int MAX_GUESSES = 3;
+
+    abstract <K> int find(Node.Immutable<K,?> node, K k);
+
+    //same as find for nodes with long keys
+    abstract int findLong(Node.Immutable<?,?> node, long k);
+
+    //where key should be, given first < key <= last, somewhere in (lo, hi]
+    private static int guess(final long key, final long first, final long last, final int lo, final int hi) {
+        final double fraction = ((double) key - (double) first) / ((double) last - (double) first);
+        final int ret = lo + (int) Math.ceil(fraction * (hi - lo));
+        return Math.max(lo + 1, Math.min(hi, ret));
+    }
+
+    private static int bisect(final ImmutableBytes bytes, final Node.Immutable<?,?> node,
+                              int lo, int hi, final long k) {
+        while(lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if(bytes.readLong(node.keyPos(mid)) < k) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+}
@@ -9,12 +9,28 @@ public class StandardFactory<K,V> implements NodeFactory<K,V> {
     private final int bufferSize;
     private final Record<K> keyRecord;
     private final Record<V> valueRecord;
+    private final Search search;
+    private final Layout layout;
+    private final Node.Shape shape;
 
-    public StandardFactory(final Record<K> keyRecord, final Record<V> valueRecord, final int bufferSize) {
+    public StandardFactory(final Record<K> keyRecord, final Record<V> valueRecord,
+                           final int bufferSize, final Search search, final Layout layout) {
         this.keyRecord = keyRecord;
         this.valueRecord = valueRecord;
         this.bufferSize = bufferSize;
+        this.search = NodeFactory.checkSearch(search, keyRecord);
+        this.layout = layout;
         this.minDegree = findMinDegree();
+        this.shape = layout.shape(keyRecord, valueRecord, getMaxKeys());
+    }
+
+    public StandardFactory(final Record<K> keyRecord, final Record<V> valueRecord,
+                           final int bufferSize, final Search search) {
+        this(keyRecord, valueRecord, bufferSize, search, Layout.INTERLEAVED);
+    }
+
+    public StandardFactory(final Record<K> keyRecord, final Record<V> valueRecord, final int bufferSize) {
+        this(keyRecord, valueRecord, bufferSize, Search.LINEAR);
     }
 
     public final int findMinDegree() {
@@ -25,4 +41,7 @@ public class StandardFactory<K,V> implements NodeFactory<K,V> {
     public final Record<V> valueRecord() { return valueRecord; }
     public final int getBufferSize(){ return bufferSize; }
     public final int getMinDegree() { return minDegree; }
+    public final Search search() { return search; }
+    public final Layout layout() { return layout; }
+    public final Node.Shape shape() { return shape; }
 }
@@ -0,0 +1,91 @@
+package io.dwclark.btree.io;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public enum Allocation {
+
+    HEAP {
+        public ByteBuffer allocate(final int size) { return ByteBuffer.allocate(size); }
+        public void release(final ByteBuffer buffer) { }
+    },
+
+    DIRECT {
+        public ByteBuffer allocate(final int size) { return ByteBuffer.allocateDirect(size); }
+        public void release(final ByteBuffer buffer) { _cleaner.accept(buffer); }
+    },
+
+    //block aligned direct buffers, ChannelBuffers opens its files with O_DIRECT for these.
+    //Only a whole buffer can be freed, so remember which one each aligned slice came from
+    DIRECT_IO {
+        public ByteBuffer allocate(final int size) {
+            final ByteBuffer whole = ByteBuffer.allocateDirect(size + DirectIO.ALIGNMENT);
+            final ByteBuffer ret = DirectIO.aligned(whole);
+            ret.limit(size);
+            final ByteBuffer sized = ret.slice();
+            _slices.put(sized, whole);
+            return sized;
+        }
+        
+        public void release(final ByteBuffer buffer) {
+            final ByteBuffer whole = _slices.remove(buffer);
+            if(whole != null) {
+                _cleaner.accept(whole);
+            }
+        }
+    };
+
+    public abstract ByteBuffer allocate(int size);
+
+    //returns the memory behind buffer immediately, buffer must not be touched afterwards
+    public abstract void release(ByteBuffer buffer);
+
+    private static final Consumer<ByteBuffer> _cleaner = cleaner();
+    private static final Map<ByteBuffer,ByteBuffer> _slices = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    //there is no public api for freeing direct memory before the buffer is collected,
+    //so find whichever internal hook this jvm has. If none, fall back to letting gc do it.
+    private static Consumer<ByteBuffer> cleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+            return (buffer) -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                }
+                catch(ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+        }
+        catch(ReflectiveOperationException | RuntimeException e) { }
+
+        try {
+            final Method cleanerMethod = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return (buffer) -> {
+                try {
+                    final Object cleaner = cleanerMethod.invoke(buffer);
+                    if(cleaner != null) {
+                        clean.invoke(cleaner);
+                    }
+                }
+                catch(ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+        }
+        catch(ReflectiveOperationException | RuntimeException e) { }
+
+        return (buffer) -> { };
+    }
+}
@@ -98,7 +98,7 @@ class Bridge {
 
     //TODO: Convert this to use iterative methods, will break in case of large byte[] arrays
     public static int write(final Locator locator, final long at, final byte[] val, final int off, final int length) {
-        final ByteBuffer buf = locator.forWrite(at, length);
+        final ByteBuffer buf = locator.forWrite(at, length).duplicate();
         final int idx = locator.index(at);
         final int lengthToWrite = Math.min(buf.capacity() - idx, length);
         buf.position(idx);
@@ -198,7 +198,8 @@ class Bridge {
 
     //TODO: Convert this to use iterative methods, will break in case of long byte[] arrays
     public static byte[] read(final Locator locator, final long at, final byte[] target, final int off, final int length) {
-        final ByteBuffer buf = locator.forRead(at, length);
+        //relative get moves the position, readers may share the buffer so work on a duplicate
+        final ByteBuffer buf = locator.forRead(at, length).duplicate();
         final int idx = locator.index(at);
         final int lengthToRead = Math.min(buf.capacity() - idx, length);
         buf.position(idx);
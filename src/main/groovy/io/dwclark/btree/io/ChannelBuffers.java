@@ -4,20 +4,52 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.BiConsumer;
 
 public class ChannelBuffers {
 
-    public enum Locking { NONE, CHANNEL, POOL }
+    //PAGE latches each page while a locator is on it: shared for reads, exclusive for writes.
+    //That keeps bytes on a page consistent, it is up to the caller to keep multi page
+    //structures consistent (e.g. by latch crabbing)
+    public enum Locking { NONE, CHANNEL, POOL, PAGE }
+
+    public enum Replacement {
+        CLOCK {
+            ReplacementPolicy policy(final int maxBuffers) { return new ClockPolicy(); }
+        },
+        
+        TWO_Q {
+            ReplacementPolicy policy(final int maxBuffers) { return new TwoQueuePolicy(maxBuffers); }
+        };
+
+        abstract ReplacementPolicy policy(int maxBuffers);
+    }
         
     static class Key {
         final Object id;
@@ -45,21 +77,120 @@ public class ChannelBuffers {
     }
 
     static class Value implements Comparable<Value> {
+        private static final int EVICTED = -1;
+        private static final int FLUSHING = -2;
+        private static final int LOADING = -3;
+        
         private long lastAccessed;
-        private boolean dirty;
+        private final AtomicBoolean dirty = new AtomicBoolean(false);
+        private volatile boolean referenced;
+        private final AtomicInteger pins = new AtomicInteger(LOADING);
+        //one bit per sector, only the sectors that were written to get written back
+        private final AtomicLongArray sectors;
+        //only used with Locking.PAGE, not reentrant
+        final StampedLock pageLatch = new StampedLock();
+        final Key key;
         final ByteBuffer buffer;
-        
-        Value(final ByteBuffer buffer) {
+
+        //values start out loading so they can be published before the read and nobody else
+        //reads the same bytes or uses them before they are there
+        Value(final Key key, final ByteBuffer buffer, final int sectorCount) {
+            this.key = key;
             this.buffer = buffer;
-            dirty = false;
+            this.sectors = new AtomicLongArray((sectorCount + 63) >>> 6);
+        }
+
+        void loaded(final int val) {
+            pins.set(val);
+        }
+
+        //returns true if this call changed the flag
+        boolean setDirty(final boolean val) { return dirty.compareAndSet(!val, val); }
+        boolean isDirty() { return dirty.get(); }
+
+        //a recycled buffer still holds the page it had before
+        void zero() {
+            final int size = buffer.capacity();
+            int i = 0;
+            for(; i + 8 <= size; i += 8) {
+                buffer.putLong(i, 0L);
+            }
+
+            for(; i < size; ++i) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+
+        //first and last are inclusive sector numbers
+        void mark(final int first, final int last) {
+            for(int i = first; i <= last; ++i) {
+                final int word = i >>> 6;
+                final long bit = 1L << (i & 63);
+                long now;
+                while(((now = sectors.get(word)) & bit) == 0L && !sectors.compareAndSet(word, now, now | bit)) { }
+            }
         }
 
-        void setDirty(final boolean val) { dirty = val; }
-        boolean isDirty() { return dirty; }
+        void markAll() {
+            for(int i = 0; i < sectors.length(); ++i) {
+                sectors.set(i, -1L);
+            }
+        }
+
+        //clears the marks and returns what they were
+        long[] takeSectors() {
+            final long[] ret = new long[sectors.length()];
+            for(int i = 0; i < ret.length; ++i) {
+                ret[i] = sectors.getAndSet(i, 0L);
+            }
+
+            return ret;
+        }
 
         long getLastAccessed() { return lastAccessed; }
         void setLastAccessed(final long val) { lastAccessed = val; }
 
+        void setReferenced(final boolean val) { referenced = val; }
+        boolean isReferenced() { return referenced; }
+
+        //returns false if the value is loading, claimed for eviction or being flushed,
+        //caller must look it up again
+        boolean pin() {
+            while(true) {
+                final int now = pins.get();
+                if(now < 0) {
+                    return false;
+                }
+
+                if(pins.compareAndSet(now, now + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            pins.decrementAndGet();
+        }
+
+        //only succeeds if nobody is using the value, after which it can't be pinned unless
+        //the eviction fails and the claim is given back
+        boolean claim() {
+            return pins.compareAndSet(0, EVICTED);
+        }
+
+        void unclaim() {
+            pins.set(0);
+        }
+
+        //keeps anyone from pinning (and so writing to) the value while it is written out
+        boolean latch() {
+            return pins.compareAndSet(0, FLUSHING);
+        }
+
+        void unlatch() {
+            pins.set(0);
+        }
+
         public int compareTo(final Value rhs) {
             return Long.compare(lastAccessed, rhs.lastAccessed);
         }
@@ -69,6 +200,10 @@ public class ChannelBuffers {
         final long lastAccessed;
         Key currentKey;
         Value currentValue;
+        long stamp;
+        volatile long nextBase = -1L;
+        long readTo = -1L;
+        int window = 0;
 
         BaseLocator(final Key key) {
             currentKey = key;
@@ -101,23 +236,114 @@ public class ChannelBuffers {
             }
         }
 
+        private Value pinned(final Key key) {
+            while(true) {
+                final Value loadedValue = buffers.get(key);
+                if(loadedValue != null) {
+                    if(loadedValue.pin()) {
+                        hits.increment();
+                        loadedValue.setReferenced(true);
+                        return loadedValue;
+                    }
+
+                    //being loaded, evicted or flushed, wait for that to finish and look again
+                    Thread.yield();
+                    continue;
+                }
+
+                final Value newValue = newValue(key);
+                if(buffers.putIfAbsent(key, newValue) != null) {
+                    allocation.release(newValue.buffer);
+                    continue;
+                }
+
+                misses.increment();
+                try {
+                    fill(key, newValue);
+                }
+                catch(RuntimeException e) {
+                    buffers.remove(key, newValue);
+                    allocation.release(newValue.buffer);
+                    throw e;
+                }
+
+                newValue.loaded(1);
+                policy.admit(newValue);
+                return newValue;
+            }
+        }
+
+        //kicks off read ahead once the locator has moved forward page by page twice, the window
+        //doubles every time the reader gets half way through what was last read ahead
+        private void readAhead(final long base) {
+            final ExecutorService ra = readAhead;
+            if(ra == null) {
+                return;
+            }
+
+            if(base != nextBase) {
+                window = 0;
+                readTo = base + bufferSize;
+            }
+            else if(window == 0) {
+                window = Math.min(INITIAL_READ_AHEAD, maxReadAhead);
+                submit(ra, base + bufferSize, window);
+                readTo = base + bufferSize + ((long) window * bufferSize);
+            }
+            else if(base + ((long) (window / 2) * bufferSize) >= readTo) {
+                window = Math.min(2 * window, maxReadAhead);
+                submit(ra, readTo, window);
+                readTo += (long) window * bufferSize;
+            }
+
+            nextBase = base + bufferSize;
+        }
+
+        private void submit(final ExecutorService ra, final long from, final int pages) {
+            final Object id = currentKey.id;
+            try {
+                ra.execute(() -> {
+                        for(int i = 0; i < pages; ++i) {
+                            //no point once the reader has caught up and loaded it itself
+                            final long base = from + ((long) i * bufferSize);
+                            if(base >= nextBase) {
+                                prefetch(Key.make(id, base));
+                            }
+                        }
+                    });
+            }
+            catch(RejectedExecutionException e) {
+                //read ahead was stopped, nothing to do
+            }
+        }
+
+        void release() {
+            if(currentValue != null) {
+                if(locking == Locking.PAGE) {
+                    currentValue.pageLatch.unlock(stamp);
+                }
+                
+                currentValue.unpin();
+                currentValue = null;
+                currentKey = Key.make(currentKey.id, -1L);
+            }
+        }
+
         private ByteBuffer locate(final long at, final int length) {
             final long base = base(at);
             if(currentKey.base == base) {
                 return currentValue.buffer;
             }
 
+            release();
             final Key newKey = Key.make(currentKey.id, base);
-            final Value loadedValue = buffers.get(newKey);
-            if(loadedValue != null) {
-                set(newKey, loadedValue);
-                return loadedValue.buffer;
+            set(newKey, pinned(newKey));
+            if(locking == Locking.PAGE) {
+                stamp = pageLatch(currentValue.pageLatch);
             }
             
-            final Value newValue = new Value(ByteBuffer.allocate(bufferSize));
-            final Value foundValue = buffers.putIfAbsent(newKey, fill(newKey, newValue));
-            set(newKey, foundValue == null ? newValue : foundValue);
-            return newValue.buffer;
+            readAhead(base);
+            return currentValue.buffer;
         }
 
         public ByteBuffer forRead(final long at, final int length) {
@@ -126,11 +352,15 @@ public class ChannelBuffers {
 
         public ByteBuffer forWrite(final long at, final int length) {
             final ByteBuffer ret = locate(at, length);
-            currentValue.setDirty(true);
+            final int idx = index(at);
+            currentValue.mark(idx >>> sectorShift, (Math.min(bufferSize, idx + length) - 1) >>> sectorShift);
+            dirty(currentValue);
             return ret;
         }
 
         abstract protected Value handleExpansion(Key key, Value value);
+
+        abstract protected long pageLatch(StampedLock latch);
     }
 
     private class ForRead extends BaseLocator {
@@ -142,6 +372,10 @@ public class ChannelBuffers {
         public Value handleExpansion(final Key key, final Value value) {
             throw new IllegalArgumentException("attempt to read beyond end of file");
         }
+
+        protected long pageLatch(final StampedLock latch) {
+            return latch.readLock();
+        }
     }
 
     private class ForWrite extends BaseLocator {
@@ -150,36 +384,216 @@ public class ChannelBuffers {
             super(key);
         }
 
+        //the first write of a page past the end has to be the whole page, otherwise the
+        //file could end part way through it. The buffer may have been evicted from another
+        //page, so it starts out zeroed like the file would
         public Value handleExpansion(final Key key, final Value value) {
+            value.zero();
+            value.markAll();
             return value;
         }
+
+        //a write locator may write any page it is on without locating it again
+        protected long pageLatch(final StampedLock latch) {
+            return latch.writeLock();
+        }
+    }
+
+    private class Flusher implements Runnable {
+        final int maxDirty;
+        final long interval;
+        final Thread thread;
+        volatile boolean running = true;
+
+        Flusher(final int maxDirty, final long interval) {
+            this.maxDirty = maxDirty;
+            this.interval = interval;
+            this.thread = new Thread(this, "ChannelBuffers-flusher");
+            this.thread.setDaemon(true);
+        }
+
+        //all of a batch is in flight at once, the values stay latched until their write is done.
+        //Returns how many writes succeeded
+        private int write(final List<Value> batch) {
+            final Lock lock = writeBackLock.readLock();
+            final AtomicInteger failed = new AtomicInteger();
+            int issued = 0;
+            lock.lock();
+            try {
+                final List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(batch.size());
+                for(Value value : batch) {
+                    if(value.setDirty(false)) {
+                        dirtyBuffers.decrementAndGet();
+                        final PathChannel pc = channels.get(value.key.id);
+                        for(Range range : ranges(value)) {
+                            bytesWritten.add(range.buffer.capacity());
+                            futures.add(pc.writePage(range.at, range.buffer).whenComplete((buf, e) -> {
+                                        if(e != null) {
+                                            failed.incrementAndGet();
+                                            redirty(value);
+                                        }
+                                    }));
+                        }
+                    }
+                }
+
+                issued = futures.size();
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .exceptionally((e) -> null).join();
+            }
+            finally {
+                lock.unlock();
+                batch.forEach(Value::unlatch);
+                batch.clear();
+            }
+
+            synchronized(this) {
+                notifyAll();
+            }
+
+            return issued - failed.get();
+        }
+
+        private int trickle() {
+            final List<Value> batch = new ArrayList<>(WRITE_BATCH);
+            int ret = 0;
+            for(Value value : buffers.values()) {
+                if(value.isDirty() && value.latch()) {
+                    batch.add(value);
+                    if(batch.size() == WRITE_BATCH) {
+                        ret += write(batch);
+                    }
+                }
+            }
+
+            if(!batch.isEmpty()) {
+                ret += write(batch);
+            }
+
+            return ret;
+        }
+
+        //pinned values are skipped, they get picked up on a later pass. A pass that wrote nothing
+        //waits too, what is dirty is pinned or failing to write and going again at once would spin
+        public void run() {
+            while(running) {
+                final int written = trickle();
+                
+                synchronized(this) {
+                    notifyAll();
+                    if(running && (written == 0 || dirtyBuffers.get() <= maxDirty)) {
+                        try {
+                            wait(interval);
+                        }
+                        catch(InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        //waits at most one interval so a writer can never be stuck behind values that are pinned
+        void throttle() {
+            throttles.increment();
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+            synchronized(this) {
+                notifyAll();
+                long remaining;
+                while(running && dirtyBuffers.get() > maxDirty &&
+                      (remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0L) {
+                    try {
+                        wait(remaining);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        void stop() {
+            synchronized(this) {
+                running = false;
+                notifyAll();
+            }
+
+            try {
+                thread.join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     private static final long PARALLEL_THRESHOLD = 4L;
+    private static final int INITIAL_READ_AHEAD = 4;
+    private static final int WRITE_BATCH = 64;
+    private static final int SECTOR_SIZE = 512;
     private static final Set<StandardOpenOption> OPTIONS =
         EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
     
     private final ConcurrentHashMap<Key,Value> buffers = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Object,PathChannel> channels = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final AtomicInteger dirtyBuffers = new AtomicInteger(0);
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private volatile Flusher flusher;
+    private volatile ExecutorService readAhead;
+    private final Set<CompletableFuture<ByteBuffer>> prefetching = ConcurrentHashMap.newKeySet();
+    private volatile int maxReadAhead;
 
     private final int bufferSize;
     private final int maxBuffers;
     private final long shift;
     private final long mask;
+    private final int sectorShift;
     private final Locking locking;
     private final ReadWriteLock rwLock;
+    //single value write backs share this, flush() takes it exclusively so it can wait them out
+    private final ReadWriteLock writeBackLock = new ReentrantReadWriteLock();
+    private final ReplacementPolicy policy;
+    private final Allocation allocation;
     
     public ChannelBuffers(final int bufferSize, final int maxBuffers, final Locking locking) {
+        this(bufferSize, maxBuffers, locking, Replacement.CLOCK);
+    }
+    
+    public ChannelBuffers(final int bufferSize, final int maxBuffers,
+                          final Locking locking, final Replacement replacement) {
+        this(bufferSize, maxBuffers, locking, replacement, Allocation.HEAP);
+    }
+    
+    public ChannelBuffers(final int bufferSize, final int maxBuffers, final Locking locking,
+                          final Replacement replacement, final Allocation allocation) {
         if(!Locator.powerOfTwo(bufferSize)) {
             throw new IllegalArgumentException("buffer size must be a power of two");
         }
+
+        if(maxBuffers < 1) {
+            throw new IllegalArgumentException("must allow at least one buffer");
+        }
+
+        if(allocation == Allocation.DIRECT_IO && bufferSize < DirectIO.ALIGNMENT) {
+            throw new IllegalArgumentException("direct i/o needs buffers of at least " + DirectIO.ALIGNMENT + " bytes");
+        }
         
         this.bufferSize = bufferSize;
         this.maxBuffers = maxBuffers;
         this.shift = Locator.shift(bufferSize);
         this.mask = Locator.mask(bufferSize);
+        this.sectorShift = Locator.shift(Math.min(bufferSize, allocation == Allocation.DIRECT_IO ?
+                                                  DirectIO.ALIGNMENT : SECTOR_SIZE));
         this.locking = locking;
         this.rwLock = (locking == Locking.POOL) ? new ReentrantReadWriteLock() : FalseLock.rwLock();
+        this.policy = replacement.policy(maxBuffers);
+        this.allocation = allocation;
     }
 
     public int getBufferCount() {
@@ -194,6 +608,42 @@ public class ChannelBuffers {
         return maxBuffers;
     }
 
+    public Allocation getAllocation() {
+        return allocation;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getDirtyBuffers() {
+        return dirtyBuffers.get();
+    }
+
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public int getSectorSize() {
+        return 1 << sectorShift;
+    }
+
     public long size(final SizeUnit units) {
         final long tmp = ((long) bufferSize) * ((long) buffers.size());
         return units.convert(tmp, SizeUnit.BYTES);
@@ -215,10 +665,15 @@ public class ChannelBuffers {
     public void createChannel(final Object id, final Path path) {
         final ReadWriteLock lock = (locking == Locking.CHANNEL) ? new ReentrantReadWriteLock() : FalseLock.rwLock();
         
+        final Set<OpenOption> options = new HashSet<>(OPTIONS);
+        if(allocation == Allocation.DIRECT_IO) {
+            options.add(DirectIO.openOption());
+        }
+        
         channels.compute(id, (existingId, existingValue) -> {
                 try {
                     return (existingValue == null ?
-                            new PathChannel(path, FileChannel.open(path, OPTIONS), lock) :
+                            new PathChannel(path, FileChannel.open(path, options), lock, options) :
                             existingValue);
                 }
                 catch(IOException e) {
@@ -227,17 +682,292 @@ public class ChannelBuffers {
             });
     }
 
+    private void dirty(final Value value) {
+        if(!value.isDirty() && value.setDirty(true)) {
+            final int count = dirtyBuffers.incrementAndGet();
+            final Flusher f = flusher;
+            if(f != null && count > f.maxDirty) {
+                f.throttle();
+            }
+        }
+    }
+    
+    //a write that failed may have lost any of the value's sectors, so all of them go out next time
+    private void redirty(final Value value) {
+        value.markAll();
+        if(value.setDirty(true)) {
+            dirtyBuffers.incrementAndGet();
+        }
+    }
+
+    private static class Range {
+        final long at;
+        final ByteBuffer buffer;
+
+        Range(final long at, final ByteBuffer buffer) {
+            this.at = at;
+            this.buffer = buffer;
+        }
+    }
+
+    //clears the value's marks and turns each run of marked sectors into a slice of its buffer
+    private List<Range> ranges(final Value value) {
+        final List<Range> ret = new ArrayList<>();
+        final long[] marked = value.takeSectors();
+        final int sectorCount = bufferSize >>> sectorShift;
+        int start = -1;
+        for(int i = 0; i <= sectorCount; ++i) {
+            final boolean isMarked = (i < sectorCount) && (marked[i >>> 6] & (1L << (i & 63))) != 0L;
+            if(isMarked && start == -1) {
+                start = i;
+            }
+            else if(!isMarked && start != -1) {
+                final ByteBuffer dup = value.buffer.duplicate();
+                dup.limit(i << sectorShift).position(start << sectorShift);
+                ret.add(new Range(value.key.base + (start << sectorShift), dup.slice()));
+                start = -1;
+            }
+        }
+        
+        return ret;
+    }
+    
+    //cleared before writing, anything written to the value during the write dirties it again.
+    //If the write fails the value is dirty again, so it can't be evicted without being written
     private void flush(final Key key, final Value value) {
-        if(value.isDirty()) {
-            channels.get(key.id).writeFully(key.base, value.buffer);
-            value.setDirty(false);
+        final Lock lock = writeBackLock.readLock();
+        lock.lock();
+        try {
+            if(value.setDirty(false)) {
+                dirtyBuffers.decrementAndGet();
+                final PathChannel pc = channels.get(key.id);
+                try {
+                    for(Range range : ranges(value)) {
+                        bytesWritten.add(range.buffer.capacity());
+                        pc.writeFully(range.at, range.buffer);
+                    }
+                }
+                catch(RuntimeException e) {
+                    redirty(value);
+                    throw e;
+                }
+            }
         }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static final Comparator<Range> BY_POSITION = Comparator.comparingLong((range) -> range.at);
+    
+    //with page latching values are held shared until written, so nobody can write to them while
+    //they are copied out. Locators never wait for a latch while holding one, so this can't deadlock
+    private Map<Object,List<Range>> dirtyByChannel(final List<Runnable> unlatch, final List<Value> taken) {
+        final Map<Object,List<Range>> ret = new HashMap<>();
+        buffers.forEachValue(Long.MAX_VALUE, (value) -> {
+                if(!value.isDirty()) {
+                    return;
+                }
+                
+                if(locking == Locking.PAGE) {
+                    final long stamp = value.pageLatch.readLock();
+                    unlatch.add(() -> value.pageLatch.unlockRead(stamp));
+                }
+                
+                if(value.setDirty(false)) {
+                    dirtyBuffers.decrementAndGet();
+                    taken.add(value);
+                    ret.computeIfAbsent(value.key.id, (id) -> new ArrayList<>()).addAll(ranges(value));
+                }
+            });
+
+        ret.values().forEach((ranges) -> ranges.sort(BY_POSITION));
+        return ret;
+    }
+
+    //ranges must be sorted by position, each run of adjacent ranges goes out in one gathering write
+    private void writeRuns(final Object id, final List<Range> ranges) {
+        final PathChannel pc = channels.get(id);
+        int start = 0;
+        for(int i = 1; i <= ranges.size(); ++i) {
+            final Range prev = ranges.get(i - 1);
+            if(i == ranges.size() || ranges.get(i).at != prev.at + prev.buffer.capacity()) {
+                final ByteBuffer[] run = new ByteBuffer[i - start];
+                for(int j = start; j < i; ++j) {
+                    run[j - start] = ranges.get(j).buffer;
+                    bytesWritten.add(run[j - start].capacity());
+                }
+
+                pc.writeFully(ranges.get(start).at, run);
+                start = i;
+            }
+        }
+    }
+
+    private void flushAll() {
+        final Lock lock = writeBackLock.writeLock();
+        lock.lock();
+        try {
+            final List<Runnable> unlatch = new ArrayList<>();
+            final List<Value> taken = new ArrayList<>();
+            try {
+                dirtyByChannel(unlatch, taken).forEach(this::writeRuns);
+            }
+            catch(RuntimeException e) {
+                //which runs made it out isn't known, write all of them again next time
+                taken.forEach(this::redirty);
+                throw e;
+            }
+            finally {
+                unlatch.forEach(Runnable::run);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //starts a background thread that writes dirty buffers every intervalMillis, or right away
+    //once more than dirtyRatio of maxBuffers are dirty. Writers past that point wait for it.
+    public synchronized void startFlusher(final double dirtyRatio, final long intervalMillis) {
+        if(dirtyRatio <= 0d || dirtyRatio > 1d) {
+            throw new IllegalArgumentException("dirty ratio must be in (0,1]");
+        }
+
+        if(intervalMillis <= 0L) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        
+        if(flusher != null) {
+            throw new IllegalStateException("flusher already started");
+        }
+
+        final Flusher f = new Flusher(Math.max(1, (int) (dirtyRatio * maxBuffers)), intervalMillis);
+        flusher = f;
+        f.thread.start();
+    }
+
+    public synchronized void stopFlusher() {
+        final Flusher f = flusher;
+        if(f != null) {
+            flusher = null;
+            f.stop();
+        }
+    }
+
+    //read ahead is capped at a quarter of the pool so it can't push out everything else
+    public synchronized void startReadAhead(final int maxPages) {
+        if(maxPages < 1) {
+            throw new IllegalArgumentException("must read ahead at least one page");
+        }
+        
+        if(readAhead != null) {
+            throw new IllegalStateException("read ahead already started");
+        }
+
+        maxReadAhead = Math.max(1, Math.min(maxPages, maxBuffers / 4));
+        readAhead = Executors.newSingleThreadExecutor((runnable) -> {
+                final Thread thread = new Thread(runnable, "ChannelBuffers-read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    public synchronized void stopReadAhead() {
+        final ExecutorService ra = readAhead;
+        if(ra != null) {
+            readAhead = null;
+            ra.shutdown();
+            try {
+                ra.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            //reads still in flight are writing into pool buffers, they must land before shutdown
+            CompletableFuture.allOf(prefetching.toArray(new CompletableFuture<?>[0])).exceptionally((e) -> null).join();
+        }
+    }
+
+    private Value newValue(final Key key) {
+        final ByteBuffer recycled = makeRoom();
+        return new Value(key, recycled != null ? recycled : allocation.allocate(bufferSize), bufferSize >>> sectorShift);
+    }
+
+    //loads a page nobody has asked for yet. It goes into the pool unpinned and unreferenced,
+    //so if it is never used it is among the first to be evicted. The read is asynchronous so
+    //a whole read ahead window can be in flight at once
+    private void prefetch(final Key key) {
+        final PathChannel pc = channels.get(key.id);
+        if(pc == null || buffers.containsKey(key) || key.base + bufferSize > pc.size()) {
+            return;
+        }
+
+        final Value value = newValue(key);
+        if(buffers.putIfAbsent(key, value) != null) {
+            allocation.release(value.buffer);
+            return;
+        }
+
+        final CompletableFuture<ByteBuffer> future = pc.readPage(key.base, value.buffer);
+        prefetching.add(future);
+        future.whenComplete((buf, e) -> {
+                prefetching.remove(future);
+                if(e != null) {
+                    buffers.remove(key, value);
+                    allocation.release(value.buffer);
+                }
+                else {
+                    value.loaded(0);
+                    policy.admit(value);
+                    prefetches.increment();
+                }
+            });
+    }
+
+    //returns the buffer of the last victim so the caller can reuse it instead of allocating
+    private ByteBuffer makeRoom() {
+        ByteBuffer ret = null;
+        while(buffers.size() >= maxBuffers) {
+            //if everything is pinned the pool is allowed to overshoot
+            final Value value = policy.victim();
+            if(value == null) {
+                break;
+            }
+
+            //write back before leaving the pool so a concurrent miss never reads stale bytes.
+            //If that fails the value stays in the pool and goes back to the policy, otherwise
+            //anyone after its page would wait on the claim forever
+            try {
+                flush(value.key, value);
+            }
+            catch(RuntimeException e) {
+                value.unclaim();
+                policy.admit(value);
+                if(ret != null) {
+                    allocation.release(ret);
+                }
+
+                throw e;
+            }
+
+            buffers.remove(value.key, value);
+            evictions.increment();
+            if(ret != null) {
+                allocation.release(ret);
+            }
+            
+            ret = value.buffer;
+        }
+
+        return ret;
     }
 
     public void flush() {
         try {
             rwLock.writeLock().lock();
-            buffers.forEach(PARALLEL_THRESHOLD, this::flush);
+            flushAll();
             channels.forEachValue(PARALLEL_THRESHOLD, PathChannel::force);
         }
         finally {
@@ -246,12 +976,16 @@ public class ChannelBuffers {
     }
 
     public void shutdown() {
+        stopReadAhead();
+        stopFlusher();
         try {
             rwLock.writeLock().lock();
-            buffers.forEach(PARALLEL_THRESHOLD, this::flush);
+            flushAll();
             channels.forEachValue(PARALLEL_THRESHOLD, PathChannel::close);
+            buffers.forEachValue(PARALLEL_THRESHOLD, (value) -> allocation.release(value.buffer));
             buffers.clear();
             channels.clear();
+            policy.clear();
         }
         finally {
             rwLock.writeLock().unlock();
@@ -263,6 +997,7 @@ public class ChannelBuffers {
         case NONE: return FalseLock.rwLock();
         case CHANNEL: return channels.get(id).rwLock;
         case POOL: return rwLock;
+        case PAGE: return FalseLock.rwLock();
         default:
             throw new IllegalStateException("unmatched locking enum");
         }
@@ -273,8 +1008,10 @@ public class ChannelBuffers {
         lock.lock();
 
         final Key key = Key.make(id, -1L);
-        return new VectorIndexed.Mutable(new ForWrite(key)) {
+        final ForWrite writer = new ForWrite(key);
+        return new VectorIndexed.Mutable(writer) {
             public void stop() {
+                writer.release();
                 lock.unlock();
             }
         };
@@ -286,8 +1023,10 @@ public class ChannelBuffers {
         lock.lock();
         
         final Key key = Key.make(id, -1L);
-        return new VectorIndexed.Immutable(new ForRead(key)) {
+        final ForRead reader = new ForRead(key);
+        return new VectorIndexed.Immutable(reader) {
             public void stop() {
+                reader.release();
                 lock.unlock();
             }
         };
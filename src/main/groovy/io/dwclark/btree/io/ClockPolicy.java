@@ -0,0 +1,37 @@
+package io.dwclark.btree.io;
+
+import java.util.ArrayDeque;
+
+class ClockPolicy implements ReplacementPolicy {
+
+    private final ArrayDeque<ChannelBuffers.Value> clock = new ArrayDeque<>();
+
+    public synchronized void admit(final ChannelBuffers.Value value) {
+        clock.offerLast(value);
+    }
+
+    //second chance clock: referenced values get their bit cleared and go around again,
+    //pinned values are skipped
+    static ChannelBuffers.Value sweep(final ArrayDeque<ChannelBuffers.Value> clock) {
+        for(int i = 2 * clock.size(); i > 0; --i) {
+            final ChannelBuffers.Value value = clock.pollFirst();
+            if(value.isReferenced() || !value.claim()) {
+                value.setReferenced(false);
+                clock.offerLast(value);
+            }
+            else {
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    public synchronized ChannelBuffers.Value victim() {
+        return sweep(clock);
+    }
+
+    public synchronized void clear() {
+        clock.clear();
+    }
+}
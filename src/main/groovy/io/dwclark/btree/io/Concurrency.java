@@ -0,0 +1,25 @@
+package io.dwclark.btree.io;
+
+//How the in memory view bytes are shared between threads. LOCKED is a reentrant
+//read write lock. OPTIMISTIC runs withRead(Function) without locking and only falls
+//back to a (non reentrant) read lock if a write got in the way.
+public enum Concurrency {
+
+    NONE {
+        ViewLock lock() { return ViewLock.NONE; }
+    },
+
+    LOCKED {
+        ViewLock lock() { return new ViewLock.Locked(); }
+    },
+
+    OPTIMISTIC {
+        ViewLock lock() { return new ViewLock.Optimistic(); }
+    };
+
+    abstract ViewLock lock();
+
+    public static Concurrency of(final boolean threadSafe) {
+        return threadSafe ? LOCKED : NONE;
+    }
+}
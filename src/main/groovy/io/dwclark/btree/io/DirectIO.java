@@ -0,0 +1,63 @@
+package io.dwclark.btree.io;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.OpenOption;
+
+//O_DIRECT support only exists in newer jdks, so everything here is looked up reflectively
+class DirectIO {
+
+    //covers both 512 byte and 4k logical block devices
+    static final int ALIGNMENT = 4_096;
+    
+    private static final OpenOption _option = option();
+    private static final Method _alignedSlice = alignedSlice();
+
+    private static OpenOption option() {
+        try {
+            final Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for(Object constant : type.getEnumConstants()) {
+                if("DIRECT".equals(((Enum<?>) constant).name())) {
+                    return (OpenOption) constant;
+                }
+            }
+        }
+        catch(ReflectiveOperationException | RuntimeException e) { }
+
+        return null;
+    }
+
+    private static Method alignedSlice() {
+        try {
+            return ByteBuffer.class.getMethod("alignedSlice", int.class);
+        }
+        catch(ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static boolean isSupported() {
+        return _option != null && _alignedSlice != null;
+    }
+    
+    static OpenOption openOption() {
+        if(!isSupported()) {
+            throw new UnsupportedOperationException("this jvm does not support direct i/o");
+        }
+
+        return _option;
+    }
+
+    static ByteBuffer aligned(final ByteBuffer buffer) {
+        if(!isSupported()) {
+            throw new UnsupportedOperationException("this jvm does not support direct i/o");
+        }
+
+        try {
+            return (ByteBuffer) _alignedSlice.invoke(buffer, ALIGNMENT);
+        }
+        catch(ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
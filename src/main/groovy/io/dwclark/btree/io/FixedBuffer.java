@@ -1,41 +1,45 @@
 package io.dwclark.btree.io;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 public class FixedBuffer implements ViewBytes {
 
     private final ByteBuffer buffer;
-    private final Lock readLock;
-    private final Lock writeLock;
+    private final ViewLock lock;
+    private final ThreadLocal<Immutable> readers = ThreadLocal.withInitial(Immutable::new);
+    private final Immutable shared = new Immutable();
 
     public FixedBuffer(final int size, final boolean threadSafe) {
-        this(ByteBuffer.allocate(size), threadSafe);
+        this(size, Concurrency.of(threadSafe));
     }
     
     public FixedBuffer(final ByteBuffer buffer, final boolean threadSafe) {
+        this(buffer, Concurrency.of(threadSafe));
+    }
+
+    public FixedBuffer(final int size, final Concurrency concurrency) {
+        this(ByteBuffer.allocate(size), concurrency);
+    }
+
+    public FixedBuffer(final ByteBuffer buffer, final Concurrency concurrency) {
         this.buffer = buffer;
-        if(threadSafe) {
-            final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
-            this.readLock = rwLock.readLock();
-            this.writeLock = rwLock.writeLock();
-        }
-        else {
-            this.readLock = FalseLock.instance();
-            this.writeLock = FalseLock.instance();
-        }
+        this.lock = concurrency.lock();
     }
 
     private class Immutable implements ImmutableBytes {
+        long stamp;
+        boolean busy;
         
         public byte read(final long at) {
             return buffer.get((int) at);
         }
         
+        //duplicate, relative gets move the position and views may share the buffer
         public byte[] read(final long at, final byte[] dst, final int off, final int length) {
-            buffer.position((int) at);
-            buffer.get(dst, off, length);
+            final ByteBuffer buf = buffer.duplicate();
+            buf.position((int) at);
+            buf.get(dst, off, length);
             return dst;
         }
         
@@ -64,7 +68,8 @@ public class FixedBuffer implements ViewBytes {
         }
 
         public void stop() {
-            readLock.unlock();
+            busy = false;
+            lock.unlockRead(stamp);
         }
     }
 
@@ -76,8 +81,9 @@ public class FixedBuffer implements ViewBytes {
         }
     
         public Mutable write(long at, byte[] src, int off, int length) {
-            buffer.position((int) at);
-            buffer.put(src, off, length);
+            final ByteBuffer buf = buffer.duplicate();
+            buf.position((int) at);
+            buf.put(src, off, length);
             return this;
         }
     
@@ -111,18 +117,53 @@ public class FixedBuffer implements ViewBytes {
             return this;
         }
 
+        @Override
         public void stop() {
-            writeLock.unlock();
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //read views are reused, only a read nested in another one on the same thread needs a new view
+    private Immutable reader() {
+        if(lock.sharedViews()) {
+            return shared;
+        }
+
+        final Immutable ret = readers.get();
+        if(ret.busy) {
+            return new Immutable();
         }
+
+        ret.busy = true;
+        return ret;
     }
 
     public ImmutableBytes forRead() {
-        readLock.lock();
-        return new Immutable();
+        final Immutable ret = reader();
+        ret.stamp = lock.readLock();
+        return ret;
     }
 
     public MutableBytes forWrite() {
-        writeLock.lock();
-        return new Mutable();
+        final Mutable ret = new Mutable();
+        ret.stamp = lock.writeLock();
+        return ret;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T withRead(final Function<ImmutableBytes,T> func) {
+        final Immutable bytes = reader();
+        try {
+            final Object ret = lock.optimistic(func, bytes);
+            if(ret != ViewLock.RETRY) {
+                return (T) ret;
+            }
+        }
+        finally {
+            bytes.busy = false;
+        }
+
+        return ViewBytes.super.withRead(func);
     }
 }
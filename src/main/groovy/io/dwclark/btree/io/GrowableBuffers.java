@@ -2,20 +2,38 @@ package io.dwclark.btree.io;
 
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 public class GrowableBuffers implements ViewBytes {
-    
-    private final List<ByteBuffer> buffers;
+
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[0];
+
+    //copy on write so unlocked readers never see a half grown array
+    private volatile ByteBuffer[] buffers = EMPTY;
     private final int bufferSize;
     private final long shift;
     private final long mask;
-    private final Lock readLock;
-    private final Lock writeLock;
+    private final ViewLock lock;
     private final Loc locator;
+    private final Allocation allocation;
+    private final ThreadLocal<Reader> readers = ThreadLocal.withInitial(Reader::new);
+    private final Reader shared;
+    //what reads past the end see
+    private final ByteBuffer zeros;
         
     public GrowableBuffers(final int bufferSize, final boolean threadSafe) {
+        this(bufferSize, threadSafe, Allocation.HEAP);
+    }
+    
+    public GrowableBuffers(final int bufferSize, final boolean threadSafe, final Allocation allocation) {
+        this(bufferSize, Concurrency.of(threadSafe), allocation);
+    }
+
+    public GrowableBuffers(final int bufferSize, final Concurrency concurrency) {
+        this(bufferSize, concurrency, Allocation.HEAP);
+    }
+    
+    public GrowableBuffers(final int bufferSize, final Concurrency concurrency, final Allocation allocation) {
         if(bufferSize < 2) {
             throw new IllegalArgumentException("requested buffer size is too small, must be >= 2");
         }
@@ -25,45 +43,45 @@ public class GrowableBuffers implements ViewBytes {
         }
 
         this.bufferSize = bufferSize;
-        this.buffers = new ArrayList<>();
         this.shift = Locator.shift(bufferSize);
         this.mask = Locator.mask(bufferSize);
+        this.allocation = allocation;
         
-        if(threadSafe) {
-            final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
-            this.readLock = rwLock.readLock();
-            this.writeLock = rwLock.writeLock();
-        }
-        else {
-            this.readLock = FalseLock.instance();
-            this.writeLock = FalseLock.instance();
-        }
-
+        this.lock = concurrency.lock();
+        this.zeros = ByteBuffer.allocate(bufferSize).asReadOnlyBuffer();
         this.locator = new Loc();
+        this.shared = new Reader();
     }
 
     private class Loc implements Locator {
         private void fill(final int index) {
-            for(int i = buffers.size(); i <= index; ++i) {
-                buffers.add(ByteBuffer.allocate(bufferSize));
+            final ByteBuffer[] now = buffers;
+            final ByteBuffer[] next = Arrays.copyOf(now, index + 1);
+            for(int i = now.length; i <= index; ++i) {
+                next[i] = allocation.allocate(bufferSize);
             }
+
+            buffers = next;
         }
-        
-        private ByteBuffer locate(final long at, final int length) {
+
+        //only writes grow the buffers, readers may not hold the write lock
+        public ByteBuffer forRead(final long at, final int length) {
             final int index = (int) (at >>> shift);
-            if(index <= buffers.size()) {
-                fill(index);
+            final ByteBuffer[] now = buffers;
+            if(index >= now.length) {
+                return zeros;
             }
-            
-            return buffers.get(index);
-        }
 
-        public ByteBuffer forRead(final long at, final int length) {
-            return locate(at, length);
+            return now[index];
         }
 
         public ByteBuffer forWrite(final long at, final int length) {
-            return locate(at, length);
+            final int index = (int) (at >>> shift);
+            if(index >= buffers.length) {
+                fill(index);
+            }
+            
+            return buffers[index];
         }
         
         public int index(final long at) {
@@ -71,24 +89,79 @@ public class GrowableBuffers implements ViewBytes {
         }
     }
 
-    public ImmutableBytes forRead() {
-        readLock.lock();
+    private class Reader extends VectorIndexed.Immutable {
+        long stamp;
+        boolean busy;
 
-        return new VectorIndexed.Immutable(locator) {
-            public void stop() {
-                readLock.unlock();
-            }
-        };
-        
+        Reader() {
+            super(GrowableBuffers.this.locator);
+        }
+
+        public void stop() {
+            busy = false;
+            lock.unlockRead(stamp);
+        }
+    }
+
+    //read views are reused, only a read nested in another one on the same thread needs a new view
+    private Reader reader() {
+        if(lock.sharedViews()) {
+            return shared;
+        }
+
+        final Reader ret = readers.get();
+        if(ret.busy) {
+            return new Reader();
+        }
+
+        ret.busy = true;
+        return ret;
+    }
+
+    public ImmutableBytes forRead() {
+        final Reader ret = reader();
+        ret.stamp = lock.readLock();
+        return ret;
     }
     
     public MutableBytes forWrite() {
-        writeLock.lock();
+        final long stamp = lock.writeLock();
 
         return new VectorIndexed.Mutable(locator) {
             public void stop() {
-                writeLock.unlock();
+                lock.unlockWrite(stamp);
             }
         };
     }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T withRead(final Function<ImmutableBytes,T> func) {
+        final Reader bytes = reader();
+        try {
+            final Object ret = lock.optimistic(func, bytes);
+            if(ret != ViewLock.RETRY) {
+                return (T) ret;
+            }
+        }
+        finally {
+            bytes.busy = false;
+        }
+
+        return ViewBytes.super.withRead(func);
+    }
+
+    public void shutdown() {
+        final long stamp = lock.writeLock();
+        try {
+            for(ByteBuffer buffer : buffers) {
+                allocation.release(buffer);
+            }
+            
+            buffers = EMPTY;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
 }
@@ -0,0 +1,223 @@
+package io.dwclark.btree.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class MappedBuffers implements ViewBytes {
+
+    private final FileChannel channel;
+    private final Object growLock = new Object();
+    //copy on write so readers never see a half grown list
+    private volatile MappedByteBuffer[] segments;
+    private final int segmentSize;
+    private final long shift;
+    private final long mask;
+    private final Lock readLock;
+    private final Lock writeLock;
+    private final Loc forRead;
+    private final Loc forWrite;
+
+    public MappedBuffers(final String path, final int segmentSize, final boolean threadSafe) {
+        this(Paths.get(path), segmentSize, threadSafe);
+    }
+
+    public MappedBuffers(final File file, final int segmentSize, final boolean threadSafe) {
+        this(file.toPath(), segmentSize, threadSafe);
+    }
+    
+    public MappedBuffers(final Path path, final int segmentSize, final boolean threadSafe) {
+        if(!Locator.powerOfTwo(segmentSize)) {
+            throw new IllegalArgumentException("segment size must be a power of two");
+        }
+
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        
+        this.segmentSize = segmentSize;
+        this.segments = new MappedByteBuffer[0];
+        this.shift = Locator.shift(segmentSize);
+        this.mask = Locator.mask(segmentSize);
+
+        if(threadSafe) {
+            final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+            this.readLock = rwLock.readLock();
+            this.writeLock = rwLock.writeLock();
+        }
+        else {
+            this.readLock = FalseLock.instance();
+            this.writeLock = FalseLock.instance();
+        }
+
+        this.forRead = new Loc(false);
+        this.forWrite = new Loc(true);
+    }
+
+    private class Loc implements Locator {
+        private final boolean grow;
+
+        Loc(final boolean grow) {
+            this.grow = grow;
+        }
+
+        private long fileSize() {
+            try {
+                return channel.size();
+            }
+            catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        //mapping read/write past the end of the file extends it, so growing is just mapping more.
+        //Reads don't grow the file, the last segment of a file that isn't a multiple of the segment
+        //size is mapped read only up to the end of the file and mapped again in full when written.
+        private MappedByteBuffer segment(final long base, final int end) throws IOException {
+            if(grow) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, base, segmentSize);
+            }
+
+            final long available = fileSize() - base;
+            if(available < end) {
+                throw new IllegalArgumentException("attempt to read beyond end of file");
+            }
+
+            return (available >= segmentSize) ?
+                channel.map(FileChannel.MapMode.READ_WRITE, base, segmentSize) :
+                channel.map(FileChannel.MapMode.READ_ONLY, base, available);
+        }
+
+        //end is how far into the segment at index has to be mapped
+        private MappedByteBuffer[] map(final int index, final int end) {
+            synchronized(growLock) {
+                final MappedByteBuffer[] existing = segments;
+                if(index < existing.length && end <= existing[index].capacity()) {
+                    return existing;
+                }
+
+                //only the last segment can be partly mapped, start over from it in case the file has grown
+                final int last = existing.length - 1;
+                final int from = (last >= 0 && existing[last].capacity() < segmentSize) ? last : existing.length;
+                final MappedByteBuffer[] ret = Arrays.copyOf(existing, Math.max(existing.length, index + 1));
+                try {
+                    for(int i = from; i <= index; ++i) {
+                        ret[i] = segment(((long) i) << shift, (i == index) ? end : segmentSize);
+                    }
+                }
+                catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+
+                segments = ret;
+                return ret;
+            }
+        }
+
+        //writes need the whole segment, reads only need the file to reach as far as they read
+        private ByteBuffer locate(final long at, final int length) {
+            final int index = (int) (at >>> shift);
+            final int end = grow ? segmentSize : (int) Math.min(segmentSize, index(at) + (long) length);
+            final MappedByteBuffer[] current = segments;
+            if(index < current.length && end <= current[index].capacity()) {
+                return current[index];
+            }
+
+            return map(index, end)[index];
+        }
+        
+        public ByteBuffer forRead(final long at, final int length) {
+            return locate(at, length);
+        }
+
+        public ByteBuffer forWrite(final long at, final int length) {
+            return locate(at, length);
+        }
+
+        public int index(final long at) {
+            return (int) (mask & at);
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+    
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    public long size(final SizeUnit units) {
+        long ret = 0L;
+        for(MappedByteBuffer segment : segments) {
+            ret += segment.capacity();
+        }
+
+        return units.convert(ret, SizeUnit.BYTES);
+    }
+    
+    public void flush() {
+        writeLock.lock();
+        try {
+            for(MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        writeLock.lock();
+        try {
+            final MappedByteBuffer[] toRelease = segments;
+            segments = new MappedByteBuffer[0];
+            for(MappedByteBuffer segment : toRelease) {
+                segment.force();
+                //a mapping is a direct buffer, releasing it unmaps it now instead of at gc time
+                Allocation.DIRECT.release(segment);
+            }
+            
+            channel.close();
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    public ImmutableBytes forRead() {
+        readLock.lock();
+
+        return new VectorIndexed.Immutable(forRead) {
+            public void stop() {
+                readLock.unlock();
+            }
+        };
+    }
+
+    public MutableBytes forWrite() {
+        writeLock.lock();
+
+        return new VectorIndexed.Mutable(forWrite) {
+            public void stop() {
+                writeLock.unlock();
+            }
+        };
+    }
+}
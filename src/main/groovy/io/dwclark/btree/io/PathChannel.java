@@ -1,20 +1,91 @@
 package io.dwclark.btree.io;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.ReadWriteLock;
 
 public class PathChannel {
     final Path path;
     final FileChannel channel;
     final ReadWriteLock rwLock;
+    private final Set<OpenOption> options;
+    private volatile AsynchronousFileChannel async;
+
+    //moves a whole buffer, re-issuing the read or write until it is done
+    private static class Transfer implements CompletionHandler<Integer,Void> {
+        final AsynchronousFileChannel channel;
+        final long base;
+        final ByteBuffer buf;
+        final boolean read;
+        final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+
+        Transfer(final AsynchronousFileChannel channel, final long base, final ByteBuffer buf, final boolean read) {
+            this.channel = channel;
+            this.base = base;
+            this.buf = buf;
+            this.read = read;
+        }
+
+        CompletableFuture<ByteBuffer> start() {
+            buf.limit(buf.capacity());
+            buf.position(0);
+            next();
+            return future;
+        }
+
+        private void next() {
+            try {
+                if(read) {
+                    channel.read(buf, base + buf.position(), null, this);
+                }
+                else {
+                    channel.write(buf, base + buf.position(), null, this);
+                }
+            }
+            catch(RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        public void completed(final Integer count, final Void attachment) {
+            if(count < 0) {
+                future.completeExceptionally(new EOFException("read past end of " + base));
+            }
+            else if(buf.hasRemaining()) {
+                next();
+            }
+            else {
+                buf.flip();
+                future.complete(buf);
+            }
+        }
+
+        public void failed(final Throwable t, final Void attachment) {
+            future.completeExceptionally(t);
+        }
+    }
 
     public PathChannel(final Path path, final FileChannel channel, final ReadWriteLock rwLock) {
+        this(path, channel, rwLock, EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    //options are used to open the asynchronous channel the same way as channel
+    public PathChannel(final Path path, final FileChannel channel,
+                       final ReadWriteLock rwLock, final Set<? extends OpenOption> options) {
         this.path = path;
         this.channel = channel;
         this.rwLock = rwLock;
+        this.options = new HashSet<>(options);
+        this.options.remove(StandardOpenOption.CREATE);
     }
 
     public long size() {
@@ -58,9 +129,70 @@ public class PathChannel {
         }
     }
 
+    //gathering writes go through the channel position, so only one may be in flight at a time
+    public void writeFully(final long base, final ByteBuffer[] bufs) {
+        long total = 0L;
+        for(ByteBuffer buf : bufs) {
+            buf.limit(buf.capacity());
+            buf.position(0);
+            total += buf.capacity();
+        }
+        
+        try {
+            synchronized(this) {
+                channel.position(base);
+                long written = 0L;
+                while(written < total) {
+                    written += channel.write(bufs);
+                }
+            }
+
+            for(ByteBuffer buf : bufs) {
+                buf.flip();
+            }
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private AsynchronousFileChannel async() {
+        AsynchronousFileChannel ret = async;
+        if(ret == null) {
+            synchronized(this) {
+                ret = async;
+                if(ret == null) {
+                    try {
+                        ret = AsynchronousFileChannel.open(path, options, null);
+                    }
+                    catch(IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    
+                    async = ret;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    //same contract as readFully, but many of these can be in flight from one thread
+    public CompletableFuture<ByteBuffer> readPage(final long base, final ByteBuffer buf) {
+        return new Transfer(async(), base, buf, true).start();
+    }
+
+    //same contract as writeFully, but many of these can be in flight from one thread
+    public CompletableFuture<ByteBuffer> writePage(final long base, final ByteBuffer buf) {
+        return new Transfer(async(), base, buf, false).start();
+    }
+
     public void force() {
         try {
             channel.force(false);
+            if(async != null) {
+                async.force(false);
+            }
         }
         catch(IOException e) {
             throw new RuntimeException(e);
@@ -70,6 +202,9 @@ public class PathChannel {
     public void close() {
         try {
             channel.close();
+            if(async != null) {
+                async.close();
+            }
         }
         catch(IOException e) {
             throw new RuntimeException(e);
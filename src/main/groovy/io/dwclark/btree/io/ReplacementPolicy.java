@@ -0,0 +1,11 @@
+package io.dwclark.btree.io;
+
+interface ReplacementPolicy {
+    //called once a newly loaded value is visible in the pool
+    void admit(ChannelBuffers.Value value);
+
+    //returns a value that has been claimed for eviction, or null if nothing can be evicted
+    ChannelBuffers.Value victim();
+    
+    void clear();
+}
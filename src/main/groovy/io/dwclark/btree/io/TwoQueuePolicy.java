@@ -0,0 +1,78 @@
+package io.dwclark.btree.io;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+//Johnson & Shasha's 2Q. First time values go into a fifo (a1in) and are evicted from there
+//without regard to how often they were touched. Only values that are asked for again after
+//being evicted (while still remembered in a1out) make it into the main queue (am). A full
+//scan of the tree therefore cycles through a1in and leaves the hot upper levels in am alone.
+class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final ArrayDeque<ChannelBuffers.Value> a1in = new ArrayDeque<>();
+    private final ArrayDeque<ChannelBuffers.Value> am = new ArrayDeque<>();
+    private final LinkedHashSet<ChannelBuffers.Key> a1out = new LinkedHashSet<>();
+    private final int kin;
+    private final int kout;
+
+    public TwoQueuePolicy(final int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    public synchronized void admit(final ChannelBuffers.Value value) {
+        if(a1out.remove(value.key)) {
+            //coming back from a1out is itself a second reference
+            value.setReferenced(true);
+            am.offerLast(value);
+        }
+        else {
+            a1in.offerLast(value);
+        }
+    }
+
+    private ChannelBuffers.Value fromA1in() {
+        for(int i = a1in.size(); i > 0; --i) {
+            final ChannelBuffers.Value value = a1in.pollFirst();
+            if(value.claim()) {
+                a1out.add(value.key);
+                if(a1out.size() > kout) {
+                    final Iterator<ChannelBuffers.Key> iter = a1out.iterator();
+                    iter.next();
+                    iter.remove();
+                }
+                
+                return value;
+            }
+            else {
+                a1in.offerLast(value);
+            }
+        }
+
+        return null;
+    }
+    
+    public synchronized ChannelBuffers.Value victim() {
+        ChannelBuffers.Value ret = null;
+        if(a1in.size() > kin || am.isEmpty()) {
+            ret = fromA1in();
+        }
+
+        if(ret == null) {
+            ret = ClockPolicy.sweep(am);
+        }
+
+        if(ret == null) {
+            ret = fromA1in();
+        }
+
+        return ret;
+    }
+
+    public synchronized void clear() {
+        a1in.clear();
+        am.clear();
+        a1out.clear();
+    }
+}
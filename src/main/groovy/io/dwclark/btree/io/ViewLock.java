@@ -0,0 +1,98 @@
+package io.dwclark.btree.io;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+abstract class ViewLock {
+
+    //returned by optimistic when the read has to be done again under the lock
+    static final Object RETRY = new Object();
+
+    abstract long readLock();
+    abstract void unlockRead(long stamp);
+    abstract long writeLock();
+    abstract void unlockWrite(long stamp);
+
+    //read views hold no state of their own without locking, one can be shared by everyone
+    boolean sharedViews() {
+        return false;
+    }
+
+    //func runs against bytes without any lock, so it may see torn data (or throw because of it,
+    //a torn pointer can even send a recursive walk around in circles) and it may be run again.
+    //What it returns only counts if nothing was written meanwhile
+    Object optimistic(final Function<ImmutableBytes,?> func, final ImmutableBytes bytes) {
+        return RETRY;
+    }
+
+    static final ViewLock NONE = new ViewLock() {
+            long readLock() { return 0L; }
+            void unlockRead(final long stamp) { }
+            long writeLock() { return 0L; }
+            void unlockWrite(final long stamp) { }
+            boolean sharedViews() { return true; }
+        };
+
+    static class Locked extends ViewLock {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        long readLock() {
+            lock.readLock().lock();
+            return 0L;
+        }
+
+        void unlockRead(final long stamp) {
+            lock.readLock().unlock();
+        }
+
+        long writeLock() {
+            lock.writeLock().lock();
+            return 0L;
+        }
+
+        void unlockWrite(final long stamp) {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static class Optimistic extends ViewLock {
+        private final StampedLock lock = new StampedLock();
+
+        long readLock() {
+            return lock.readLock();
+        }
+
+        void unlockRead(final long stamp) {
+            lock.unlockRead(stamp);
+        }
+
+        long writeLock() {
+            return lock.writeLock();
+        }
+
+        void unlockWrite(final long stamp) {
+            lock.unlockWrite(stamp);
+        }
+
+        @Override
+        Object optimistic(final Function<ImmutableBytes,?> func, final ImmutableBytes bytes) {
+            final long stamp = lock.tryOptimisticRead();
+            if(stamp == 0L) {
+                return RETRY;
+            }
+
+            try {
+                final Object ret = func.apply(bytes);
+                return lock.validate(stamp) ? ret : RETRY;
+            }
+            catch(RuntimeException | StackOverflowError e) {
+                if(lock.validate(stamp)) {
+                    throw e;
+                }
+
+                return RETRY;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.dwclark.btree
+
+import spock.lang.*
+import io.dwclark.btree.io.GrowableBuffers
+
+class BPlusTreeSpec extends Specification {
+
+    def 'test node capacities'() {
+        setup:
+        def btree = new BPlusTree(new GrowableBuffers(4_096, false), new LongLongFactory(4_096))
+
+        expect:
+        btree.maxInnerKeys == 339
+        btree.maxLeafKeys == 255
+        new LongLongFactory(4_096).maxKeys == 203
+    }
+
+    def 'test insert, search and update'() {
+        setup:
+        def btree = new BPlusTree(new GrowableBuffers(1_024, false), new LongLongFactory(106))
+
+        when:
+        (1L..100L).each { btree.insert(it, it * 2L) }
+        btree.insert(50L, 5L)
+
+        then:
+        btree.valid
+        btree.size() == 100L
+        btree.height() > 1
+        btree.search(50L) == 5L
+        (1L..100L).findAll { it != 50L }.every { btree.search(it) == it * 2L }
+        btree.search(0L) == null
+        btree.search(101L) == null
+    }
+
+    def 'test leaves are linked in order'() {
+        setup:
+        def list = (0L..<1_000L).toList()
+        Collections.shuffle(list, new Random(20))
+        def btree = new BPlusTree(new GrowableBuffers(1_024, false), new LongLongFactory(106))
+        list.each { btree.insert(it, -it) }
+        def seen = []
+
+        when:
+        btree.forEach { k, v -> seen << [k, v] }
+
+        then:
+        btree.keys() == (0L..<1_000L).toList()
+        seen == (0L..<1_000L).collect { [it, -it] }
+    }
+
+    def 'test range scans follow the leaves'() {
+        setup:
+        def btree = new BPlusTree(new GrowableBuffers(1_024, false), new LongLongFactory(106))
+        (0L..<1_000L).each { btree.insert(2L * it, it) }
+
+        expect:
+        btree.scan(null, null).collect { it.key } == (0L..<1_000L).collect { 2L * it }
+        btree.scan(101L, 111L).collect { it.key } == [102L, 104L, 106L, 108L, 110L]
+        btree.scan(1_990L, null).collect { it.value } == [995L, 996L, 997L, 998L, 999L]
+        btree.scan(5_000L, null).collect() == []
+        btree.scan(10L, 10L).collect() == []
+    }
+
+    def 'test random inserts and removes agree with a map'() {
+        setup:
+        def random = new Random(bufferSize)
+        def expected = new TreeMap<Integer,Integer>()
+        def factory = new StandardFactory(IntegerRecord.instance(), IntegerRecord.instance(), bufferSize, Search.BINARY)
+        def btree = new BPlusTree(new GrowableBuffers(1_024, false), factory)
+        20_000.times { i ->
+            int key = random.nextInt(1_000)
+            if(random.nextInt(5) < 2) {
+                assert btree.remove(key) == (expected.remove(key) != null)
+            }
+            else {
+                btree.insert(key, i)
+                expected[key] = i
+            }
+        }
+
+        expect:
+        btree.valid
+        btree.size() == expected.size()
+        btree.keys() == expected.keySet().toList()
+        (0..<1_000).every { k -> btree.search(k) == expected[k] }
+
+        when:
+        expected.keySet().each { k -> assert btree.remove(k) }
+
+        then:
+        btree.valid
+        btree.size() == 0L
+        btree.height() == 1
+
+        where:
+        bufferSize << [ 54, 106, 1_024 ]
+    }
+
+    def 'test b+tree needs fewer nodes than btree'() {
+        setup:
+        def bufferSize = 256
+        def btree = new BTree(new GrowableBuffers(4_096, false), new LongLongFactory(bufferSize))
+        def bplus = new BPlusTree(new GrowableBuffers(4_096, false), new LongLongFactory(bufferSize))
+        (0L..<20_000L).each { k ->
+            btree.insert(k, k)
+            bplus.insert(k, k)
+        }
+
+        expect:
+        bplus.allocator.current < btree.allocator.current
+    }
+}
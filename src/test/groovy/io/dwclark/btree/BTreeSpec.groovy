@@ -3,6 +3,7 @@ package io.dwclark.btree
 import spock.lang.*
 import io.dwclark.btree.io.GrowableBuffers
 import io.dwclark.btree.io.FixedBuffer
+import io.dwclark.btree.io.ChannelBuffers
 
 class BTreeSpec extends Specification {
 
@@ -439,6 +440,56 @@ class BTreeSpec extends Specification {
         btree.search(7L) == 17L;
     }
 
+    def 'test child at index reads from the node'() {
+        setup:
+        def btree = new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(66))
+        (0L..<2_000L).each { btree.insert(it, it) }
+        def inner = btree.breadthFirstNodes().findAll { !it.leaf() }
+
+        expect:
+        inner.size() > 1
+        inner.every { node -> (0..node.count()).every { i -> node.childAtIndex(i) == node.index(i).child() } }
+    }
+
+    def 'test update of the median of a full child'() {
+        setup:
+        def random = new Random(1)
+        def expected = [:]
+        def btree = new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(66))
+        5_000.times {
+            long key = random.nextInt(1_000)
+            btree.insert(key, (long) it)
+            expected[key] = (long) it
+        }
+
+        expect:
+        btree.valid
+        btree.size() == expected.size()
+        expected.every { k, v -> btree.search(k) == v }
+    }
+
+    def 'test emptying a leaf root keeps it'() {
+        setup:
+        def btree = new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(66))
+        def root = btree.root
+
+        when:
+        btree.insert(5L, 5L)
+        btree.remove(5L)
+
+        then:
+        btree.root == root
+        btree.size() == 0
+        btree.allocator.unused.isEmpty()
+
+        when:
+        (0L..<1_000L).each { btree.insert(it, it) }
+
+        then:
+        btree.valid
+        btree.size() == 1_000
+    }
+
     def 'misc inner node remove (missing from book example)'() {
         setup:
         def bufferSize = NodeFactory.bufferSizeForMinDegree(3, lr, lr)
@@ -637,6 +688,268 @@ class BTreeSpec extends Specification {
         list.every { i -> btree.remove((long) i) }
     }
 
+    def 'test columnar nodes'() {
+        setup:
+        def random = new Random(18)
+        def expected = new TreeMap<Integer,Integer>()
+        def factory = new StandardFactory(IntegerRecord.instance(), IntegerRecord.instance(), bufferSize,
+                                          Search.BINARY, Layout.COLUMNAR)
+        def btree = new BTree(new GrowableBuffers(1_024, false), factory)
+        20_000.times { i ->
+            int key = random.nextInt(1_000)
+            if(random.nextInt(3) == 0) {
+                assert btree.remove(key) == (expected.remove(key) != null)
+            }
+            else {
+                btree.insert(key, i)
+                expected[key] = i
+            }
+        }
+
+        expect:
+        btree.valid
+        btree.size() == expected.size()
+        (0..<1_000).every { k -> btree.search(k) == expected[k] }
+        btree.breadthFirstNodes().every { node -> node.sorted }
+
+        where:
+        bufferSize << [ 42, 106, 1_024 ]
+    }
+
+    def 'test range scans agree with a map'() {
+        setup:
+        def random = new Random(21)
+        def expected = new TreeMap<Long,Long>()
+        def btree = new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(106))
+        5_000.times {
+            long key = 2L * random.nextInt(5_000)
+            btree.insert(key, -key)
+            expected[key] = -key
+        }
+
+        expect:
+        [[null, null], [null, 501L], [500L, null], [500L, 501L], [501L, 502L], [3_000L, 2_000L],
+         [1_000L, 8_000L], [-10L, 0L], [9_998L, 20_000L]].every { from, to ->
+            def sub = expected
+            sub = (from == null) ? sub : sub.tailMap(from, true)
+            sub = (to == null) ? sub : sub.headMap(to, false)
+            def found = []
+            btree.scan(from, to).each { e -> found << [e.key, e.value] }
+            found == sub.collect { k, v -> [k, v] }
+        }
+    }
+
+    def 'test streams close their cursors'() {
+        setup:
+        def btree = new BTree(new GrowableBuffers(1_024, true), new LongLongFactory(106))
+        (0L..<1_000L).each { btree.insert(it, it) }
+
+        when:
+        def firsts = btree.stream(100L, null).withCloseable { s -> s.limit(10).collect { it.key } }
+        def cursor = btree.scan(null, null)
+        cursor.next()
+        cursor.close()
+        btree.insert(1_000L, 1_000L)
+
+        then:
+        firsts == (100L..<110L).toList()
+        !cursor.hasNext()
+        btree.size() == 1_001L
+    }
+
+    def 'test bulk loads from sorted entries'() {
+        setup:
+        def expected = new TreeMap<Integer,Integer>()
+        (0..<count).each { expected[3 * it] = -it }
+        def factory = new StandardFactory(IntegerRecord.instance(), IntegerRecord.instance(), bufferSize)
+        def btree = new BTree(new GrowableBuffers(1_024, false), factory)
+        def allocator = btree.allocator
+
+        when:
+        btree.load(expected.entrySet().iterator(), fill)
+
+        then:
+        btree.valid
+        btree.size() == count
+        btree.scan(null, null).collect { [it.key, it.value] } == expected.collect { k, v -> [k, v] }
+        btree.breadthFirstNodes().size() == allocator.current - allocator.unused.size()
+
+        when:
+        btree.insert(1, 1)
+        btree.remove(0)
+
+        then:
+        btree.valid
+        btree.search(1) == 1
+        btree.search(0) == null
+
+        where:
+        bufferSize | fill | count
+        42         | 1.0  | 0
+        42         | 1.0  | 2
+        42         | 0.5  | 10_000
+        106        | 1.0  | 17
+        106        | 1.0  | 10_000
+        106        | 0.7  | 10_000
+        1_024      | 0.9  | 50_000
+    }
+
+    def 'test bulk loads are smaller than inserts'() {
+        setup:
+        def inserted = new BTree(new GrowableBuffers(4_096, false), new LongLongFactory(256))
+        def loaded = new BTree(new GrowableBuffers(4_096, false), new LongLongFactory(256))
+        def entries = (0L..<20_000L).collect { new AbstractMap.SimpleImmutableEntry(it, it) }
+        entries.each { inserted.insert(it.key, it.value) }
+
+        when:
+        loaded.load(entries.stream(), 1.0d)
+
+        then:
+        loaded.valid
+        loaded.keys().sort() == inserted.keys().sort()
+        loaded.allocator.current < inserted.allocator.current
+    }
+
+    def 'test batched inserts agree with a map'() {
+        setup:
+        def random = new Random(bufferSize)
+        def expected = new TreeMap<Integer,Integer>()
+        def factory = new StandardFactory(IntegerRecord.instance(), IntegerRecord.instance(), bufferSize)
+        def btree = new BTree(new GrowableBuffers(1_024, false), factory, threadSafe)
+        200.times {
+            def batch = new TreeMap<Integer,Integer>()
+            random.nextInt(500).times { batch[random.nextInt(20_000)] = random.nextInt() }
+            btree.insertAll(batch.entrySet().toList())
+            expected.putAll(batch)
+        }
+
+        expect:
+        btree.valid
+        btree.size() == expected.size()
+        expected.every { k, v -> btree.search(k) == v }
+
+        where:
+        bufferSize | threadSafe
+        42         | false
+        106        | false
+        106        | true
+        1_024      | false
+    }
+
+    def 'test batched inserts need sorted keys'() {
+        setup:
+        def btree = new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(106))
+        def batch = [10L, 20L, 20L, 30L].collect { new AbstractMap.SimpleImmutableEntry(it, it) }
+
+        when:
+        btree.insertAll(batch)
+
+        then:
+        thrown(IllegalArgumentException)
+        btree.valid
+        btree.keys() == [10L, 20L]
+    }
+
+    def 'test thread safe trees can only allocate blocks they can latch'() {
+        setup:
+        def fb = new GrowableBuffers(1_024, false)
+        def factory = new LongLongFactory(106)
+
+        when:
+        new BTree(fb, new BlockAllocator(0xFFFF_FFFFL, true), factory, 0, true)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        def btree = new BTree(fb, new BlockAllocator(0xFFFF_FFFFL, false), factory, 0, false)
+        def threadSafe = new BTree(fb, factory, true)
+
+        then:
+        btree.allocator.max == 0xFFFF_FFFFL
+        threadSafe.allocator.max == NodeLatches.MAX_NODES
+    }
+
+    def 'test multi-gets return values in key order given'() {
+        setup:
+        def random = new Random(24)
+        def expected = [:]
+        def btree = new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(bufferSize), threadSafe)
+        5_000.times {
+            long key = random.nextInt(10_000)
+            btree.insert(key, (long) it)
+            expected[key] = (long) it
+        }
+        def keys = (0..<2_000).collect { (long) random.nextInt(12_000) } + [3L, 3L, -1L]
+
+        expect:
+        btree.searchAll(keys) == keys.collect { expected[it] }
+        btree.searchAll([]) == []
+
+        where:
+        bufferSize | threadSafe
+        54         | false
+        256        | false
+        256        | true
+    }
+
+    def 'test multi-gets sort by the key record'() {
+        setup:
+        def btree = new BTree(new GrowableBuffers(1_024, false),
+                              new StandardFactory(UUIDRecord.instance(), IntegerRecord.instance(), 256))
+        def uuids = (0..<1_000).collect { UUID.randomUUID() }
+        uuids.eachWithIndex { u, i -> btree.insert(u, i) }
+
+        expect:
+        btree.searchAll(uuids.reverse()) == (0..<1_000).toList().reverse()
+    }
+
+    def 'test bulk loads need sorted keys and an empty tree'() {
+        setup:
+        def btree = new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(106))
+        def entries = [5L, 6L, 7L, 6L, 8L].collect { new AbstractMap.SimpleImmutableEntry(it, it) }
+
+        when:
+        btree.load(entries.iterator(), 1.0d)
+
+        then:
+        thrown(IllegalArgumentException)
+        btree.valid
+        btree.keys() == [5L, 6L, 7L]
+
+        when:
+        btree.load([].iterator(), 1.0d)
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def 'test primitive long/long btree'() {
+        setup:
+        def random = new Random(16)
+        def expected = new TreeMap<Long,Long>()
+        def bufferSize = NodeFactory.bufferSizeForMinDegree(3, lr, lr)
+        def btree = new LongLongBTree(new GrowableBuffers(128, false), new LongLongFactory(bufferSize))
+        20_000.times {
+            long key = random.nextInt(1_000)
+            if(random.nextInt(3) == 0) {
+                assert btree.remove(key) == (expected.remove(key) != null)
+            }
+            else {
+                long value = random.nextLong()
+                btree.put(key, value)
+                expected[key] = value
+            }
+        }
+
+        expect:
+        btree.valid
+        btree.size() == expected.size()
+        (0L..<1_000L).every { k -> btree.get(k, -1L) == expected.getOrDefault(k, -1L) }
+        expected.every { k, v -> btree.search(k) == v && btree.contains(k) }
+        !btree.contains(1_000L)
+    }
+
     def 'test bad btree successor bug'() {
         def list = [16, 34, 22, 4, 1, 8, 23, 11, 6, 18, 21, 31, 19, 9, 15, 17, 3, 28, 24,
                     27, 5, 26, 12, 20, 25, 32, 29, 7, 14, 10, 33, 30, 13, 0, 2]
@@ -656,4 +969,227 @@ class BTreeSpec extends Specification {
             btree.remove((long) i) && btree.valid
         }
     }
+
+    def 'test concurrent btree with latch crabbing'() {
+        setup:
+        def threads = 4
+        def perThread = 5_000L
+        def bufferSize = 1_024
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 64, ChannelBuffers.Locking.NONE)
+        cb.createChannel('concurrent', file)
+        def btree = new BTree(cb.viewBytes('concurrent'), new LongLongFactory(bufferSize), true)
+
+        when:
+        def workers = (0L..<threads).collect { t ->
+            Thread.start {
+                def keys = (0L..<perThread).collect { it * threads + t }
+                keys.each { k -> btree.insert(k, k) }
+                keys.each { k -> assert btree.search(k) == k }
+                keys.findAll { k -> k % 2L == 0L }.each { k -> assert btree.remove(k) }
+            }
+        }
+        workers*.join()
+
+        then:
+        btree.valid
+        btree.size() == (threads * perThread).intdiv(2)
+        (0L..<(threads * perThread)).every { k -> btree.search(k) == ((k % 2L == 0L) ? null : k) }
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'test concurrent batched inserts into shared leaves'() {
+        setup:
+        def threads = 4
+        def perThread = 10_000L
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(1_024, 256, ChannelBuffers.Locking.NONE)
+        cb.createChannel('batched', file)
+        def btree = new BTree(cb.viewBytes('batched'), new LongLongFactory(106), true)
+
+        when:
+        def workers = (0L..<threads).collect { t ->
+            Thread.start {
+                (0L..<perThread).collect { it * threads + t }.collate(64).each { keys ->
+                    btree.insertAll(keys.collect { k -> new AbstractMap.SimpleImmutableEntry(k, k) })
+                }
+            }
+        }
+        workers*.join()
+
+        then:
+        btree.valid
+        btree.size() == threads * perThread
+        (0L..<(threads * perThread)).every { k -> btree.search(k) == k }
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'test trees reopen from their header'() {
+        setup:
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(4_096, 64, ChannelBuffers.Locking.NONE)
+        cb.createChannel('reopen', file)
+        def factory = new StandardFactory(IntegerRecord.instance(), LongRecord.instance(), bufferSize, Search.BINARY, Layout.COLUMNAR)
+        def btree = BTree.create(cb.viewBytes('reopen'), factory)
+        (0..<10_000).each { btree.insert(it, -it as long) }
+        (0..<10_000).findAll { it % 3 != 0 }.each { assert btree.remove(it) }
+        def root = btree.root
+        def current = btree.allocator.current
+        def unused = btree.allocator.unused
+
+        when:
+        btree.save()
+        cb.flush()
+        cb.shutdown()
+        cb = new ChannelBuffers(4_096, 64, ChannelBuffers.Locking.NONE)
+        cb.createChannel('reopen', file)
+        def reopened = BTree.open(cb.viewBytes('reopen'))
+
+        then:
+        reopened.root == root
+        reopened.allocator.current == current
+        reopened.allocator.unused == unused
+        reopened.valid
+        reopened.size() == 3_334L
+        (0..<10_000).every { reopened.search(it) == ((it % 3 == 0) ? -it as long : null) }
+
+        when:
+        (10_000..<12_000).each { reopened.insert(it, it as long) }
+
+        then:
+        reopened.valid
+        reopened.allocator.unused.size() < unused.size()
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+
+        where:
+        bufferSize << [ 54, 1_024 ]
+    }
+
+    def 'test saves keep writers out'() {
+        setup:
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(1_024, 512, ChannelBuffers.Locking.NONE)
+        cb.createChannel('saves', file)
+        def btree = BTree.create(cb.viewBytes('saves'), new LongLongFactory(106), true)
+        def done = new java.util.concurrent.atomic.AtomicBoolean()
+        def saver = Thread.start { while(!done.get()) { btree.save() } }
+
+        when:
+        (0..<4).collect { t ->
+            Thread.start {
+                long base = t * 1_000_000L
+                3.times { (0L..<5_000L).each { btree.insert(base + it, it) }; (0L..<5_000L).each { btree.remove(base + it) } }
+                (0L..<5_000L).each { btree.insert(base + it, it) }
+            }
+        }.each { it.join() }
+        done.set(true)
+        saver.join()
+        btree.save()
+        cb.flush()
+
+        then:
+        btree.valid
+        btree.size() == 20_000L
+        BTree.open(cb.viewBytes('saves')).size() == 20_000L
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'test only trees with a header save and open'() {
+        when:
+        BTree.open(new GrowableBuffers(1_024, false))
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        new BTree(new GrowableBuffers(1_024, false), new LongLongFactory(128)).save()
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def 'test optimistic searches while writers change the tree'() {
+        setup:
+        def bufferSize = 128
+        def loaded = 2_000L
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 256, ChannelBuffers.Locking.NONE)
+        cb.createChannel('optimistic', file)
+        def btree = new BTree(cb.viewBytes('optimistic'), new LongLongFactory(bufferSize), true)
+        (0L..<loaded).each { k -> btree.insert(k * 2L, k) }
+
+        when:
+        def writers = (0L..<2L).collect { t ->
+            Thread.start {
+                (0L..<loaded).findAll { it % 2L == t }.each { k ->
+                    btree.insert((k * 2L) + 1L, k)
+                    assert btree.remove((k * 2L) + 1L)
+                }
+            }
+        }
+        def readers = (0..<2).collect {
+            Thread.start {
+                3.times { (0L..<loaded).each { k -> assert btree.search(k * 2L) == k } }
+            }
+        }
+        (writers + readers)*.join()
+
+        then:
+        btree.valid
+        btree.size() == loaded
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'test searches allocate nothing'() {
+        setup:
+        def factory = new LongLongFactory(256)
+        def btree = new BTree(new GrowableBuffers(4_096, false), factory, threadSafe)
+        Long[] keys = (0L..<10_000L).collect { it * 3L } as Long[]
+        //values stay in the Long cache, boxing them is the caller's cost not the search's
+        keys.eachWithIndex { k, i -> btree.insert(k, (long) (i % 100)) }
+        Allocations.search(btree, keys, 20)
+
+        //anything a search allocated would be at least an object header per search
+        expect:
+        Allocations.search(btree, keys, 100) < 100L * keys.length
+
+        where:
+        threadSafe << [false, true]
+    }
+
+    @groovy.transform.CompileStatic
+    static class Allocations {
+        static long search(final BTree btree, final Long[] keys, final int rounds) {
+            def mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.threadMXBean
+            def id = Thread.currentThread().id
+            def before = mx.getThreadAllocatedBytes(id)
+            for(int r = 0; r < rounds; ++r) {
+                for(int i = 0; i < keys.length; ++i) {
+                    btree.search(keys[i])
+                }
+            }
+            
+            return mx.getThreadAllocatedBytes(id) - before
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package io.dwclark.btree
+
+import spock.lang.*
+import io.dwclark.btree.io.GrowableBuffers
+
+class SearchSpec extends Specification {
+
+    def 'test searches agree with a map'() {
+        setup:
+        def random = new Random(bufferSize)
+        def expected = new TreeMap<Long,Long>()
+        def longs = new BTree(new GrowableBuffers(4_096, false), new LongLongFactory(bufferSize, search))
+        def ints = new BTree(new GrowableBuffers(4_096, false),
+                             new StandardFactory(IntegerRecord.instance(), IntegerRecord.instance(), bufferSize, search))
+        20_000.times { i ->
+            long key = random.nextInt(2_000) - 1_000
+            if(random.nextInt(3) == 0) {
+                def removed = expected.remove(key) != null
+                assert longs.remove(key) == removed
+                assert ints.remove((int) key) == removed
+            }
+            else {
+                expected[key] = (long) i
+                longs.insert(key, (long) i)
+                ints.insert((int) key, (int) i)
+            }
+        }
+
+        expect:
+        longs.valid
+        ints.valid
+        (-1_100L..1_100L).every { k ->
+            longs.search(k) == expected[k] && ints.search((int) k) == expected[k]?.intValue()
+        }
+
+        where:
+        [search, bufferSize] << [Search.values(), [66, 106, 512, 4_096]].combinations()
+    }
+
+    def 'test primitive searches'() {
+        setup:
+        def btree = new LongLongBTree(new GrowableBuffers(4_096, false), new LongLongFactory(1_024, search))
+        (0L..<5_000L).each { k -> btree.put(k * k, k) }
+
+        expect:
+        (0L..<5_000L).every { k -> btree.get(k * k, -1L) == k && btree.get((k * k) + 1L, -1L) == (k == 0L ? 1L : -1L) }
+        btree.get(-1L, -1L) == -1L
+
+        where:
+        search << Search.values()
+    }
+
+    def 'test interpolation search needs numeric keys'() {
+        when:
+        new StandardFactory(UUIDRecord.instance(), IntegerRecord.instance(), 4_096, Search.INTERPOLATION)
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    //Run with BENCH set to see where binary and interpolation search overtake linear search
+    @Requires({ env.BENCH })
+    def 'benchmark node searches'() {
+        setup:
+        def count = 1 << 20
+        def random = new Random(1)
+        long[] keys = new long[count]
+        (0..<count).each { i -> keys[i] = random.nextLong() }
+
+        expect:
+        [128, 256, 512, 1_024, 2_048, 4_096, 8_192, 16_384].each { bufferSize ->
+            def line = "buffer size: ${bufferSize}, keys per node: ${new LongLongFactory(bufferSize).maxKeys}"
+            Search.values().each { search ->
+                def btree = new LongLongBTree(new GrowableBuffers(1 << 16, false), new LongLongFactory(bufferSize, search))
+                (0..<count).each { i -> btree.put(keys[i], (long) i) }
+                Bench.gets(btree, keys)
+                line += ", ${search}: ${Bench.gets(btree, keys)} ns"
+            }
+
+            println line
+        }
+    }
+
+    @groovy.transform.CompileStatic
+    static class Bench {
+        //keeps the gets from being optimized away
+        static volatile long sink
+
+        //average ns per get, visiting keys out of insertion order
+        static long gets(final LongLongBTree btree, final long[] keys) {
+            final int mask = keys.length - 1
+            long sum = 0L
+            final long start = System.nanoTime()
+            for(int i = 0; i < keys.length; ++i) {
+                sum += btree.get(keys[(i * 7_919) & mask], 0L)
+            }
+
+            final long elapsed = System.nanoTime() - start
+            sink = sum
+            return elapsed.intdiv(keys.length).longValue()
+        }
+    }
+}
@@ -2,6 +2,7 @@ package io.dwclark.btree.io;
 
 import java.io.*
 import spock.lang.*
+import spock.util.concurrent.PollingConditions
 import io.dwclark.btree.*
 
 class ChannelBuffersSpec extends Specification {
@@ -41,4 +42,450 @@ class ChannelBuffersSpec extends Specification {
         cleanup:
         file.delete()        
     }
+
+    def 'bounded pool evicts and writes back'() {
+        setup:
+        def total = 10_000L
+        def bufferSize = 4_096
+        def name = 'mybtree'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 8, ChannelBuffers.Locking.NONE)
+        cb.createChannel(name, file)
+        def factory = new LongLongFactory(bufferSize);
+        def btree = new BTree(cb.viewBytes(name), factory)
+
+        when:
+        (0L..<total).each { btree.insert it, it }
+
+        then:
+        cb.bufferCount <= 8
+        cb.evictions > 0
+        cb.misses > 0
+        cb.hits > 0
+        (0L..<total).each { assert(btree.search(it) == it) }
+        btree.isValid()
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'pages past the end start out zeroed after evictions'() {
+        setup:
+        def bufferSize = 128
+        def fileA = File.createTempFile('tst', '.idx')
+        def fileB = File.createTempFile('tst', '.idx')
+        [fileA, fileB]*.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 4, ChannelBuffers.Locking.NONE)
+        cb.createChannel('a', fileA)
+        cb.createChannel('b', fileB)
+        def bytes = cb.forWrite('a')
+        (0L..<(10L * bufferSize)).step(8) { bytes.writeLong(it, 0x1111111111111111L) }
+        bytes.stop()
+
+        when:
+        bytes = cb.forWrite('a')
+        bytes.writeLong((20L * bufferSize) + 64L, 5L)
+        def fresh = (0..<bufferSize).step(8).collect { bytes.readLong((20L * bufferSize) + it) }
+        bytes.stop()
+        def btree = new BTree(cb.viewBytes('b'), new LongLongFactory(256))
+        cb.flush()
+
+        then:
+        cb.evictions > 0
+        fresh == (0..<bufferSize).step(8).collect { it == 64 ? 5L : 0L }
+        btree.size() == 0L
+        btree.valid
+        new RandomAccessFile(fileA, 'r').withCloseable { raf ->
+            raf.seek(20L * bufferSize)
+            assert raf.readLong() == 0L
+            true
+        }
+
+        cleanup:
+        cb.shutdown()
+        [fileA, fileB]*.delete()
+    }
+
+    def 'failed writes leave buffers dirty'() {
+        setup:
+        def bufferSize = 128
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 4, ChannelBuffers.Locking.NONE)
+        cb.createChannel('failing', file)
+        def bytes = cb.forWrite('failing')
+        (0L..<4L).each { page -> bytes.writeLong(page * bufferSize, page) }
+        bytes.stop()
+        cb.channels['failing'].channel.close()
+
+        when:
+        cb.flush()
+
+        then:
+        thrown(RuntimeException)
+        cb.dirtyBuffers == 4
+
+        when:
+        bytes = cb.forWrite('failing')
+        try {
+            bytes.writeLong(10L * bufferSize, 10L)
+        }
+        finally {
+            bytes.stop()
+        }
+
+        then:
+        thrown(RuntimeException)
+        cb.dirtyBuffers == 4
+        cb.bufferCount == 4
+
+        cleanup:
+        file.delete()
+    }
+
+    @Timeout(30)
+    def 'victims of failed evictions can be used again'() {
+        setup:
+        def bufferSize = 128
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 4, ChannelBuffers.Locking.NONE)
+        cb.createChannel('failing', file)
+        def bytes = cb.forWrite('failing')
+        (0L..<4L).each { page -> bytes.writeLong(page * bufferSize, page + 100L) }
+        bytes.stop()
+        cb.channels['failing'].channel.close()
+
+        when:
+        bytes = cb.forWrite('failing')
+        try {
+            bytes.writeLong(10L * bufferSize, 110L)
+        }
+        finally {
+            bytes.stop()
+        }
+
+        then:
+        thrown(RuntimeException)
+
+        when:
+        cb.channels.remove('failing')
+        cb.createChannel('failing', file)
+        def read = cb.forRead('failing')
+        def values = (0L..<4L).collect { page -> read.readLong(page * bufferSize) }
+        read.stop()
+        bytes = cb.forWrite('failing')
+        bytes.writeLong(10L * bufferSize, 110L)
+        bytes.stop()
+        cb.flush()
+        def onDisk = java.nio.ByteBuffer.wrap(file.bytes)
+
+        then:
+        values == [100L, 101L, 102L, 103L]
+        cb.dirtyBuffers == 0
+        (0..<4).every { page -> onDisk.getLong(page * bufferSize) == page + 100L }
+        onDisk.getLong(10 * bufferSize) == 110L
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'full scans do not evict the root with 2q'() {
+        setup:
+        def total = 20_000L
+        def bufferSize = 4_096
+        def name = 'mybtree'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 16, ChannelBuffers.Locking.NONE, replacement)
+        cb.createChannel(name, file)
+        def factory = new LongLongFactory(bufferSize);
+        def btree = new BTree(cb.viewBytes(name), factory)
+        (0L..<total).each { btree.insert it, it }
+        def rootKey = null
+        btree.breadthFirst { node, pred, succ -> if(rootKey == null) rootKey = node.keys()[0] }
+
+        when:
+        btree.search(rootKey)
+        btree.keys()
+        def before = cb.misses
+        btree.search(rootKey)
+
+        then:
+        cb.misses - before == misses
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+
+        where:
+        replacement                          | misses
+        ChannelBuffers.Replacement.CLOCK     | 1
+        ChannelBuffers.Replacement.TWO_Q     | 0
+    }
+
+    def 'direct buffers survive eviction and reopen'() {
+        setup:
+        def total = 10_000L
+        def bufferSize = 4_096
+        def name = 'mybtree'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 8, ChannelBuffers.Locking.NONE,
+                                    ChannelBuffers.Replacement.CLOCK, Allocation.DIRECT)
+        cb.createChannel(name, file)
+        def factory = new LongLongFactory(bufferSize);
+        def btree = new BTree(cb.viewBytes(name), factory)
+
+        when:
+        (0L..<total).each { btree.insert it, it }
+        cb.shutdown()
+        cb = new ChannelBuffers(bufferSize, 8, ChannelBuffers.Locking.NONE,
+                                ChannelBuffers.Replacement.CLOCK, Allocation.DIRECT)
+        cb.createChannel(name, file)
+        btree = new BTree(cb.viewBytes(name), btree.allocator, factory, btree.root)
+
+        then:
+        cb.evictions == 0
+        (0L..<total).each { assert(btree.search(it) == it) }
+        cb.evictions > 0
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'background flusher writes dirty buffers'() {
+        setup:
+        def total = 10_000L
+        def bufferSize = 4_096
+        def name = 'mybtree'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 64, ChannelBuffers.Locking.POOL)
+        cb.createChannel(name, file)
+        cb.startFlusher(0.25d, 10L)
+        def factory = new LongLongFactory(bufferSize);
+        def btree = new BTree(cb.viewBytes(name), factory)
+        def conditions = new PollingConditions(timeout: 5)
+
+        when:
+        (0L..<total).each { btree.insert it, it }
+
+        then:
+        conditions.eventually {
+            assert cb.dirtyBuffers == 0
+        }
+
+        when:
+        cb.stopFlusher()
+        cb.startFlusher(0.25d, 10L)
+
+        then:
+        (0L..<total).each { assert(btree.search(it) == it) }
+
+        when:
+        cb.startFlusher(0.25d, 10L)
+
+        then:
+        thrown IllegalStateException
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'flush writes runs of adjacent buffers'() {
+        setup:
+        def bufferSize = 1_024
+        def name = 'pages'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 64, ChannelBuffers.Locking.NONE)
+        cb.createChannel(name, file)
+        def pages = (0..<10) + (20..<30) + [ 40 ]
+
+        when:
+        def bytes = cb.forWrite(name)
+        pages.reverse().each { page -> bytes.writeLong(page * bufferSize, page + 1L) }
+        bytes.stop()
+        cb.flush()
+
+        then:
+        cb.dirtyBuffers == 0
+        file.length() == 41 * bufferSize
+        new RandomAccessFile(file, 'r').withCloseable { raf ->
+            pages.each { page ->
+                raf.seek(page * bufferSize)
+                assert raf.readLong() == page + 1L
+            }
+        }
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'sequential reads trigger read ahead'() {
+        setup:
+        def bufferSize = 4_096
+        def name = 'pages'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 64, ChannelBuffers.Locking.NONE)
+        cb.createChannel(name, file)
+        def bytes = cb.forWrite(name)
+        (0L..<32L).each { page -> bytes.writeLong(page * bufferSize, page) }
+        bytes.stop()
+        cb.shutdown()
+        cb = new ChannelBuffers(bufferSize, 64, ChannelBuffers.Locking.NONE)
+        cb.createChannel(name, file)
+        cb.startReadAhead(16)
+
+        when:
+        bytes = cb.forRead(name)
+        bytes.readLong(0L)
+        bytes.readLong(bufferSize)
+        cb.stopReadAhead()
+
+        then:
+        cb.misses == 2
+        cb.prefetches == 4
+
+        when:
+        (2L..<6L).each { page -> assert bytes.readLong(page * bufferSize) == page }
+
+        then:
+        cb.misses == 2
+        
+        cleanup:
+        bytes.stop()
+        cb.shutdown()
+        file.delete()
+    }
+
+    @Requires({ DirectIO.isSupported() })
+    def 'direct i/o bypasses the page cache'() {
+        setup:
+        def total = 10_000L
+        def bufferSize = 4_096
+        def name = 'mybtree'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 8, ChannelBuffers.Locking.NONE,
+                                    ChannelBuffers.Replacement.CLOCK, Allocation.DIRECT_IO)
+        cb.createChannel(name, file)
+        def factory = new LongLongFactory(bufferSize);
+        def btree = new BTree(cb.viewBytes(name), factory)
+
+        when:
+        (0L..<total).each { btree.insert it, it }
+        cb.flush()
+
+        then:
+        cb.evictions > 0
+        (0L..<total).each { assert(btree.search(it) == it) }
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'direct i/o needs block sized buffers'() {
+        when:
+        new ChannelBuffers(1_024, 8, ChannelBuffers.Locking.NONE,
+                           ChannelBuffers.Replacement.CLOCK, Allocation.DIRECT_IO)
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    def 'flush only writes dirty sectors'() {
+        setup:
+        def bufferSize = 8_192
+        def name = 'pages'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 64, ChannelBuffers.Locking.NONE)
+        cb.createChannel(name, file)
+        def bytes = cb.forWrite(name)
+        (0L..<4L).each { page -> bytes.writeLong(page * bufferSize, page) }
+        bytes.stop()
+        cb.flush()
+
+        expect:
+        cb.sectorSize == 512
+        cb.bytesWritten == 4 * bufferSize
+
+        when:
+        def before = cb.bytesWritten
+        bytes = cb.forWrite(name)
+        bytes.writeShort(bufferSize + 600L, 7 as short)
+        bytes.writeLong((2L * bufferSize) + 510L, 99L)
+        bytes.writeLong((3L * bufferSize) - 4L, 55L)
+        bytes.stop()
+        cb.flush()
+
+        then:
+        cb.bytesWritten - before == 5 * 512
+        new RandomAccessFile(file, 'r').withCloseable { raf ->
+            raf.seek(bufferSize + 600L)
+            assert raf.readShort() == 7 as short
+            raf.seek((2L * bufferSize) + 510L)
+            assert raf.readLong() == 99L
+            raf.seek((3L * bufferSize) - 4L)
+            assert raf.readLong() == 55L
+            true
+        }
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
+    def 'page latching lets threads work on different pages at once'() {
+        setup:
+        def bufferSize = 1_024
+        def threads = 8
+        def perThread = 64
+        def name = 'pages'
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(bufferSize, 16, ChannelBuffers.Locking.PAGE)
+        cb.createChannel(name, file)
+        cb.startFlusher(0.25d, 5L)
+
+        when:
+        def workers = (0..<threads).collect { t ->
+            Thread.start {
+                (0L..<50L).each { round ->
+                    def bytes = cb.forWrite(name)
+                    (0..<perThread).each { i -> bytes.writeLong((t * perThread + i) * bufferSize, round) }
+                    bytes.stop()
+                    bytes = cb.forRead(name)
+                    (0..<perThread).each { i -> assert bytes.readLong((t * perThread + i) * bufferSize) == round }
+                    bytes.stop()
+                }
+            }
+        }
+        workers*.join()
+        cb.flush()
+
+        then:
+        cb.dirtyBuffers == 0
+        new RandomAccessFile(file, 'r').withCloseable { raf ->
+            (0L..<(threads * perThread)).each { page ->
+                raf.seek(page * bufferSize)
+                assert raf.readLong() == 49L
+            }
+            true
+        }
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
 }
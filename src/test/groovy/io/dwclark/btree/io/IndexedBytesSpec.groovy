@@ -163,6 +163,45 @@ class IndexedBytesSpec extends Specification {
         }
     }
 
+    def "byte array writes from many threads"() {
+        setup:
+        def file = File.createTempFile("test", ".bin")
+        file.deleteOnExit()
+        def cb = new ChannelBuffers(4_096, 16, ChannelBuffers.Locking.NONE)
+        cb.createChannel("shared", file)
+        def vb = cb.viewBytes("shared")
+        def start = vb.forWrite()
+        start.writeLong(0L, 0L)
+        start.stop()
+
+        when:
+        (0..<4).collect { t ->
+            Thread.start {
+                def pattern = new byte[64]
+                Arrays.fill(pattern, (t + 1) as byte)
+                100_000.times {
+                    def bytes = vb.forWrite()
+                    try {
+                        bytes.write(t * 256L, pattern, 0, 64)
+                    }
+                    finally {
+                        bytes.stop()
+                    }
+                }
+            }
+        }*.join()
+        def read = vb.forRead()
+        def regions = (0..<4).collect { t -> read.read(t * 256L, new byte[256], 0, 256) as List }
+        read.stop()
+
+        then:
+        (0..<4).every { t -> regions[t].take(64).every { it == t + 1 } && regions[t].drop(64).every { it == 0 } }
+
+        cleanup:
+        cb.shutdown()
+        file.delete()
+    }
+
     def "channel buffers operations"() {
         setup:
 
@@ -258,4 +297,64 @@ class IndexedBytesSpec extends Specification {
         (0..<48).each { i -> assert(fw.readInt(i*32L) == (i + 8)) }
         (48..<64).each { i -> assert(fw.readInt(i*32L) == i) }
     }
+
+    def 'direct growable buffers'() {
+        setup:
+        def grow = new GrowableBuffers(4, false, Allocation.DIRECT)
+        def sb = new SerialMutableBytes(grow.forWrite())
+        sb.with {
+            writeLong Long.MAX_VALUE
+            writeInt 137
+            writeDouble 10d
+        }
+
+        expect:
+        sb.with {
+            assert readLong() == Long.MAX_VALUE
+            assert readInt() == 137
+            assert readDouble() == 10d
+        }
+
+        cleanup:
+        grow.shutdown()
+    }
+
+    def 'optimistic reads see whole writes'() {
+        setup:
+        def views = [new FixedBuffer(1_024, Concurrency.OPTIMISTIC), new GrowableBuffers(64, Concurrency.OPTIMISTIC)]
+
+        expect:
+        views.every { view ->
+            def writer = Thread.start {
+                (1L..10_000L).each { i -> view.withWrite({ bytes -> bytes.writeLong(0L, i).writeLong(512L, i) } as java.util.function.Consumer) }
+            }
+            
+            def consistent = true
+            while(writer.alive) {
+                def pair = view.withRead({ bytes -> [bytes.readLong(0L), bytes.readLong(512L)] } as java.util.function.Function)
+                consistent &= (pair[0] == pair[1])
+            }
+
+            writer.join()
+            consistent && view.withRead({ bytes -> bytes.readLong(512L) } as java.util.function.Function) == 10_000L
+        }
+    }
+
+    def 'reads past the end of growable buffers read zeros'() {
+        setup:
+        def grow = new GrowableBuffers(8, Concurrency.OPTIMISTIC)
+        def bytes = grow.forRead()
+
+        expect:
+        bytes.readLong(1_024L) == 0L
+        
+        when:
+        bytes.stop()
+        bytes = grow.forWrite()
+        bytes.writeLong(1_024L, 5L)
+        bytes.stop()
+
+        then:
+        grow.withRead({ b -> b.readLong(1_024L) } as java.util.function.Function) == 5L
+    }
 }
@@ -0,0 +1,99 @@
+package io.dwclark.btree.io;
+
+import java.io.*
+import java.nio.ByteBuffer
+import spock.lang.*
+import io.dwclark.btree.*
+
+class MappedBuffersSpec extends Specification {
+
+    def 'basic btree on mapped buffers'() {
+        setup:
+        def total = 10_000L
+        def bufferSize = 4_096
+        def segmentSize = 65_536
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def mb = new MappedBuffers(file, segmentSize, false)
+        def factory = new LongLongFactory(bufferSize);
+        def btree = new BTree(mb, factory)
+
+        when:
+        (0L..<total).each { btree.insert it, it }
+
+        then:
+        mb.segmentCount > 1
+        (0L..<total).each { assert(btree.search(it) == it) }
+
+        when:
+        def segments = mb.segmentCount
+        mb.shutdown()
+        mb = new MappedBuffers(file, segmentSize, false)
+        btree = new BTree(mb, btree.allocator, factory, btree.root);
+        
+        then:
+        (0L..<total).each { assert(btree.search(it) == it) }
+        mb.segmentCount <= segments
+
+        cleanup:
+        mb.shutdown()
+        file.delete()        
+    }
+
+    def 'reading past the end of the file'() {
+        setup:
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def mb = new MappedBuffers(file, 1_024, false)
+
+        when:
+        mb.forRead().readLong(0L)
+
+        then:
+        thrown IllegalArgumentException
+
+        when:
+        mb.forWrite().writeLong(5_000L, 42L)
+
+        then:
+        mb.segmentCount == 5
+        mb.forRead().readLong(5_000L) == 42L
+        
+        cleanup:
+        mb.shutdown()
+        file.delete()
+    }
+
+    def 'reading the tail of an odd sized file'() {
+        setup:
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        file.bytes = (0..<2_500).collect { it as byte } as byte[]
+        def mb = new MappedBuffers(file, 1_024, false)
+
+        expect:
+        mb.forRead().read(2_499L) == (2_499 as byte)
+        mb.forRead().readInt(2_496L) == ByteBuffer.wrap(file.bytes, 2_496, 4).getInt()
+        mb.forRead().readLong(1_020L) == ByteBuffer.wrap(file.bytes, 1_020, 8).getLong()
+        mb.segmentCount == 3
+        mb.size(SizeUnit.BYTES) == 2_500L
+
+        when:
+        mb.forRead().readLong(2_496L)
+
+        then:
+        thrown IllegalArgumentException
+
+        when:
+        mb.forWrite().writeLong(2_496L, 42L)
+
+        then:
+        mb.forRead().readLong(2_496L) == 42L
+        mb.forRead().read(2_400L) == (2_400 as byte)
+        mb.size(SizeUnit.BYTES) == 3_072L
+
+        cleanup:
+        mb.shutdown()
+        file.delete()
+    }
+}
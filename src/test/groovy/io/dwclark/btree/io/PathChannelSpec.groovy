@@ -0,0 +1,46 @@
+package io.dwclark.btree.io;
+
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import spock.lang.*
+
+class PathChannelSpec extends Specification {
+
+    def 'async page reads and writes'() {
+        setup:
+        def file = File.createTempFile('tst', '.idx')
+        file.deleteOnExit()
+        def path = file.toPath()
+        def pc = new PathChannel(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                                 FalseLock.rwLock())
+        def pages = (0..<16).collect { page ->
+            def buf = ByteBuffer.allocate(1_024)
+            buf.putLong(0, page)
+            buf
+        }
+
+        when:
+        CompletableFuture.allOf(pages.withIndex().collect { buf, page ->
+                pc.writePage(page * 1_024L, buf) } as CompletableFuture[]).join()
+        def read = (0..<16).collect { page -> pc.readPage(page * 1_024L, ByteBuffer.allocate(1_024)) }*.join()
+
+        then:
+        file.length() == 16 * 1_024
+        read.withIndex().every { buf, page -> buf.getLong(0) == page && buf.limit() == 1_024 }
+
+        when:
+        pc.readPage(16 * 1_024L, ByteBuffer.allocate(1_024)).join()
+
+        then:
+        CompletionException e = thrown()
+        e.cause instanceof EOFException
+
+        cleanup:
+        pc.close()
+        file.delete()
+    }
+}